@@ -18,6 +18,7 @@
 
 (ns pigpen.avro.core
   (:require [pigpen.runtime :as rt :refer [NativeToClojure]]
+            [pigpen.runtime.view :as view]
             [pigpen.raw :as raw])
   (:import [org.apache.avro
             Schema
@@ -25,26 +26,34 @@
             Schema$Type
             Schema$Parser]
            [org.apache.avro.generic
-            GenericData$Record
+            GenericRecord
             GenericData$Array
             GenericData$EnumSymbol]
            [org.apache.avro.util Utf8]))
 
 (set! *warn-on-reflection* true)
 
+(def ^:private record-index
+  "Returns a map of keyword field name to field position for a record schema.
+This is shared by every record with the same schema."
+  (memoize
+    (fn [^Schema schema]
+      (->> (.getFields schema)
+        (map (fn [^Schema$Field fd] [(keyword (.name fd)) (.pos fd)]))
+        (into {})))))
+
 (extend-protocol NativeToClojure
   Utf8
   (rt/native->clojure [value]
     (str value))
   GenericData$Array
-  (rt/native->clojure [value]
-    (mapv rt/native->clojure value))
-  GenericData$Record
-  (rt/native->clojure [^GenericData$Record value]
-    (let [fields (->> value .getSchema .getFields (map (fn [^Schema$Field fd] (.name fd))))]
-      (zipmap (map keyword fields)
-              (map #(rt/native->clojure
-                      (.get value ^String %)) fields))))
+  (rt/native->clojure [^GenericData$Array value]
+    (view/vector-view (.size value) #(.get value (int %)) rt/native->clojure))
+  GenericRecord
+  (rt/native->clojure [^GenericRecord value]
+    (view/map-view (record-index (.getSchema value))
+                   #(.get value (int %))
+                   rt/native->clojure))
   GenericData$EnumSymbol
   (rt/native->clojure [value]
     (str value)))
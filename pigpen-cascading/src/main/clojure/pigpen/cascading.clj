@@ -36,6 +36,9 @@ Optionally takes a Cascading FlowConnector (defaults to HadoopFlowConnector)
   Example:
 
     (generate-flow (pig/store-clj \"output.clj\" foo))
+
+  Note: Flows that use map-indexed or sort-indexed set a FlowStepStrategy. To
+        set another one, compose it with (.getFlowStepStrategy flow).
 "
   {:added "0.3.0"}
   ([query] (generate-flow (HadoopFlowConnector.) query))
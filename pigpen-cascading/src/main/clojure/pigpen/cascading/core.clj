@@ -17,21 +17,23 @@
 ;;
 
 (ns pigpen.cascading.core
-  (:import (cascading.flow FlowDef FlowConnector)
+  (:import (cascading.flow Flow FlowDef FlowConnector)
            (cascading.operation Identity)
            (cascading.operation.filter Limit Sample)
-           (cascading.pipe Pipe Each Every Merge GroupBy CoGroup)
+           (cascading.pipe Pipe Each Every Merge GroupBy CoGroup HashJoin Checkpoint
+                           SubAssembly)
            (cascading.pipe.assembly Unique Rename AggregateBy)
            (cascading.pipe.joiner BufferJoin MixedJoin)
            (cascading.scheme.hadoop TextLine)
-           (cascading.property AppProps)
+           (cascading.property AppProps ConfigDef$Mode)
            (cascading.tap Tap)
            (cascading.tap.hadoop Hfs)
            (cascading.tuple Fields)
            (cascading.util NullNotEquivalentComparator)
            (pigpen.cascading PigPenFunction PigPenAggregateBy
-                             ReduceBuffer GroupBuffer
-                             RankBuffer InduceSentinelNils))
+                             ReduceBuffer GroupBuffer InduceSentinelNils
+                             RankCounter RankAssign RankStepStrategy
+                             PigPenBinaryScheme))
   (:require [pigpen.raw :as raw]
             [schema.core :as s]
             [pigpen.model :as m]
@@ -93,6 +95,9 @@
 (defmethod get-tap :string [{:keys [^String location fields args]}]
   (Hfs. (TextLine. ^Fields (cfields (or fields args))) location))
 
+(defmethod get-tap :binary [{:keys [^String location fields args]}]
+  (Hfs. (PigPenBinaryScheme. ^Fields (cfields (or fields args))) location))
+
 (defmethod get-tap :tap [{:keys [opts]}]
   (get opts :tap))
 
@@ -101,6 +106,18 @@
 
 ;; ******* Commands ********
 
+(defn ^:private set-parallel
+  "Sets the number of reducers for the step that contains pipe, using the
+:parallel option. Sub-assemblies are configured on each of their tails."
+  ^Pipe [^Pipe pipe {:keys [parallel]}]
+  (when parallel
+    (doseq [^Pipe p (if (instance? SubAssembly pipe)
+                      (.getTails ^SubAssembly pipe)
+                      [pipe])]
+      (.setProperty (.getStepConfigDef p) ConfigDef$Mode/REPLACE
+                    "mapred.reduce.tasks" (str parallel))))
+  pipe)
+
 (defmulti command->flowdef
   "Converts an individual command into the equivalent Cascading flow definition."
   (fn [{:keys [type]} ancestors flowdef] type))
@@ -138,6 +155,16 @@
    _]
   (GroupBy. pipe Fields/NONE))
 
+(defn ^:private aggregate-by
+  "Creates a PigPenAggregateBy. The map-side cache is configured with the
+:fold-cache option, a map of :max-bytes and :max-entries."
+  ^Pipe [^String context ^Pipe pipe ^Fields group-fields ^Fields arg-fields {:keys [fold-cache]}]
+  (let [{:keys [max-bytes max-entries]
+         :or {max-bytes PigPenAggregateBy/DEFAULT_MAX_BYTES
+              max-entries PigPenAggregateBy/DEFAULT_MAX_ENTRIES}} fold-cache]
+    (PigPenAggregateBy. context pipe group-fields arg-fields
+                        (long max-bytes) (int max-entries))))
+
 (s/defmethod command->flowdef :reduce-fold
   [{:keys [reduce :- m/Reduce
            fold :- m/Project]}
@@ -148,7 +175,7 @@
         old-fields (cfields (get-in projections [0 :expr :args]))
         new-fields (cfields (get-in projections [0 :alias]))]
     (->
-      (PigPenAggregateBy. context pipe Fields/NONE old-fields)
+      (aggregate-by context pipe Fields/NONE old-fields (:opts reduce))
       (Rename. old-fields new-fields))))
 
 (s/defmethod command->flowdef :group
@@ -167,7 +194,8 @@
                         (let [fields (-> a :ancestor :fields cfields)]
                           (Each. ^Pipe (:pipe a)
                                  (InduceSentinelNils. (int i) fields))))))))]
-    (CoGroup. (str id) pipes join-keys Fields/NONE (BufferJoin.))))
+    (-> (CoGroup. (str id) pipes join-keys Fields/NONE (BufferJoin.))
+      (set-parallel opts))))
 
 (s/defmethod command->flowdef :group-fold
   [{:keys [group :- m/Group
@@ -185,9 +213,10 @@
                     (let [context (pr-str `'{:projections ~(prepare-projections [p])})
                           group-fields (cfields [key])
                           arg-fields (cfields (get-in p [:expr :args]))]
-                      (PigPenAggregateBy. context pipe group-fields arg-fields))
+                      (aggregate-by context pipe group-fields arg-fields (:opts group)))
                     pipe)))]
-    (CoGroup. (str id) pipes join-keys Fields/NONE (BufferJoin.))))
+    (-> (CoGroup. (str id) pipes join-keys Fields/NONE (BufferJoin.))
+      (set-parallel (:opts group)))))
 
 (s/defmethod command->flowdef :join
   [{:keys [id keys fields join-types opts]} :- m/Join
@@ -201,7 +230,12 @@
                  (boolean-array)
                  (MixedJoin.))
         join-keys (group-key-cfields keys (:join-nils opts))]
-    (CoGroup. (str id) pipes join-keys (cfields fields) joiner)))
+    (if (:broadcast opts)
+      ;; All but the first relation are held in memory. This is only used to
+      ;; attach a bloom filter, which is a single value.
+      (HashJoin. (str id) pipes join-keys (cfields fields) joiner)
+      (-> (CoGroup. (str id) pipes join-keys (cfields fields) joiner)
+        (set-parallel opts)))))
 
 (s/defmethod command->flowdef :project
   [{:keys [id projections fields]} :- m/Project
@@ -277,11 +311,12 @@
         (Each. (PigPenFunction. (pr-str `'~context) (cfields fields)))))))
 
 (s/defmethod command->flowdef :distinct
-  [{:keys [fields]} :- m/Distinct
+  [{:keys [fields opts]} :- m/Distinct
    [{:keys [^Pipe pipe ancestor]}]
    _]
   (-> pipe
     (Unique. Fields/ALL)
+    (set-parallel opts)
     (Rename. (cfields (:fields ancestor)) (cfields fields))))
 
 (s/defmethod command->flowdef :take
@@ -293,11 +328,13 @@
     (Rename. (cfields (:fields ancestor)) (cfields fields))))
 
 (s/defmethod command->flowdef :sample
-  [{:keys [p fields]} :- m/Sample
+  [{:keys [p fields opts]} :- m/Sample
    [{:keys [^Pipe pipe ancestor]}]
    _]
   (-> pipe
-    (Each. (Sample. p))
+    (Each. (if-let [seed (:seed opts)]
+             (Sample. (long seed) (double p))
+             (Sample. p)))
     (Rename. (cfields (:fields ancestor)) (cfields fields))))
 
 (s/defmethod command->flowdef :concat
@@ -322,14 +359,21 @@
       (Each. (cfields fields) (Identity.) Fields/RESULTS))))
 
 (s/defmethod command->flowdef :rank
-  [{:keys [id ancestors fields]} :- m/Rank
-   [{:keys [^Pipe pipe]}]
+  [{:keys [id fields]} :- m/Rank
+   [{:keys [^Pipe pipe ancestor]}]
    _]
-  ; TODO: In this naive, single-reducer implementation, a rank followed by an
-  ; sort should skip the sort since rank does a group-by itself.
-  (-> pipe
-    (GroupBy. Fields/NONE)
-    (Every. (RankBuffer. (cfields fields)) Fields/RESULTS)))
+  ;; This is done in two passes. The first tags each value with its slice and
+  ;; its index within that slice. The checkpoint ends the step, so that
+  ;; RankStepStrategy can convert the count of each slice into an offset. The
+  ;; second pass adds the offset to the index. This preserves the order of a
+  ;; preceding sort, which is done in a single slice.
+  (let [tagged (cfields [(symbol (name id) "slice")
+                         (symbol (name id) "index")
+                         (first (:fields ancestor))])]
+    (-> pipe
+      (Each. (RankCounter. (str id) tagged) Fields/RESULTS)
+      (Checkpoint.)
+      (Each. (RankAssign. (str id) (cfields fields)) Fields/RESULTS))))
 
 (s/defmethod command->flowdef :store-many
   [_ _ _]
@@ -356,6 +400,11 @@
 (defn commands->flow
   "Transforms a series of commands into a Cascading flow"
   [^FlowConnector connector commands]
-  (let [[flowdef _] (reduce command->flowdef+ [(FlowDef/flowDef) {}] commands)]
-    (.connect connector flowdef)))
+  (let [[flowdef _] (reduce command->flowdef+ [(FlowDef/flowDef) {}] commands)
+        flow (.connect connector ^FlowDef flowdef)]
+    (when (some (comp #{:rank} :type) commands)
+      ;; Compose with any strategy that's already set
+      (.setFlowStepStrategy ^Flow flow
+        (RankStepStrategy. (.getFlowStepStrategy ^Flow flow))))
+    flow))
 
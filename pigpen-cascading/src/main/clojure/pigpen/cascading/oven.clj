@@ -17,7 +17,12 @@
 ;;
 
 (ns pigpen.cascading.oven
-  (:require [pigpen.oven]))
+  (:require [pigpen.oven]
+            [pigpen.parallel :as parallel]
+            [pigpen.hadoop :as hadoop]))
+
+(defmethod parallel/location-bytes :cascading [_ location]
+  (hadoop/location-size location))
 
 (defn merge-reduce-fold
   "Merges a reduce command followed by a fold operation"
@@ -72,7 +77,8 @@
   ([opts query]
     (pigpen.oven/bake
       :cascading
-      {merge-reduce-fold 4.1
-       merge-group-fold  4.2}
+      {parallel/estimate-parallel 3.5
+       merge-reduce-fold          4.1
+       merge-group-fold           4.2}
       (merge default-opts opts)
       query)))
@@ -24,7 +24,8 @@
            (cascading.tuple Fields Tuple TupleEntry TupleEntryCollector)
            (pigpen.cascading OperationUtil SingleIterationSeq))
   (:require [taoensso.nippy :refer [freeze thaw]]
-            [pigpen.runtime :as rt :refer [HybridToClojure]]
+            [pigpen.runtime :as rt :refer [HybridToClojure NativeToClojure]]
+            [pigpen.runtime.view :as view]
             [schema.core :as s]
             [pigpen.model :as m]))
 
@@ -39,7 +40,19 @@
       (OperationUtil/getBytes)
       (thaw {:compressor nil
              :encryptor  nil
-             :v1-compatibility? false}))))
+             :v1-compatibility? false})))
+  Tuple
+  (rt/hybrid->clojure [^Tuple value]
+    ;; Cascading reuses tuples, so the view needs its own copy
+    (let [value (Tuple. value)]
+      (view/vector-view (.size value) #(.getObject value (int %)) rt/hybrid->clojure))))
+
+(extend-protocol NativeToClojure
+  Tuple
+  (rt/native->clojure [^Tuple value]
+    ;; Cascading reuses tuples, so the view needs its own copy
+    (let [value (Tuple. value)]
+      (view/vector-view (.size value) #(.getObject value (int %)) rt/native->clojure))))
 
 (defn cs-freeze [value]
   (BytesWritable. (freeze value {:compressor nil, :skip-header? true})))
@@ -255,29 +268,32 @@ Called from pigpen.cascading.InduceSentinelNils"
 (defn context->fold-fn [context part]
   (get-in context [:projections 0 :expr :func part]))
 
+(defn aggregate-partial-start
+  [context]
+  (let [combinef (context->fold-fn context :combinef)]
+    (combinef)))
+
 (defn aggregate-partial-aggregate
-  [context ^TupleEntry args ^Tuple agg]
-  (if-not agg
-    (let [combinef (context->fold-fn context :combinef)]
-      (recur context args (->tuple [(combinef)])))
-
-    (let [pre (context->fold-fn context :pre)
-          reducef (context->fold-fn context :reducef)
-          agg (.getObject agg 0)]
-      (->>
-        (.getObject args 0)
-        rt/hybrid->clojure
-        vector
-        pre
-        (reduce reducef agg)))))
+  [context value agg]
+  (let [pre (context->fold-fn context :pre)
+        reducef (context->fold-fn context :reducef)]
+    (->>
+      value
+      rt/hybrid->clojure
+      vector
+      pre
+      (reduce reducef agg))))
+
+(defn aggregate-partial-estimate
+  "Estimates the size of a partial aggregation in bytes, using the size of its
+frozen form"
+  [agg]
+  (let [^BytesWritable b (cs-freeze agg)]
+    (long (.getLength b))))
 
 (defn aggregate-partial-complete
-  [^Tuple agg]
-  (-> agg
-    (.getObject 0)
-    cs-freeze
-    vector
-    ->tuple))
+  [agg]
+  (cs-freeze agg))
 
 (defn aggregate-final-start
   [context ^AggregatorCall aggregator-call]
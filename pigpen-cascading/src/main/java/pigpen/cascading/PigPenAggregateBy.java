@@ -18,50 +18,200 @@
 
 package pigpen.cascading;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.hadoop.io.BytesWritable;
+
 import cascading.flow.FlowProcess;
 import cascading.operation.Aggregator;
 import cascading.operation.AggregatorCall;
 import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.pipe.Each;
+import cascading.pipe.Every;
+import cascading.pipe.GroupBy;
 import cascading.pipe.Pipe;
-import cascading.pipe.assembly.AggregateBy;
+import cascading.pipe.SubAssembly;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
 import clojure.lang.IFn;
 
-public class PigPenAggregateBy extends AggregateBy {
+/**
+ * Performs a fold in two phases. Values are partially aggregated map-side in a
+ * cache keyed by the frozen group key. When the cache exceeds maxEntries or the
+ * estimated size of the cached keys and values exceeds maxBytes, the least
+ * recently used entries are flushed. The partial values are then grouped and
+ * combined reduce-side.
+ */
+public class PigPenAggregateBy extends SubAssembly {
+
+    public static final String COUNTER_GROUP = "PigPen";
+    public static final String COUNTER_HITS = "AggregateCacheHits";
+    public static final String COUNTER_MISSES = "AggregateCacheMisses";
+    public static final String COUNTER_FLUSHES = "AggregateCacheFlushes";
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
 
     public PigPenAggregateBy(final String context, final Pipe pipe, final Fields groupingFields, final Fields argFields) {
-        super(null, new Pipe[] { pipe }, groupingFields, argFields, new Partial(context, argFields), new Final(context, argFields), 0);
+        this(context, pipe, groupingFields, argFields, DEFAULT_MAX_BYTES, DEFAULT_MAX_ENTRIES);
+    }
+
+    public PigPenAggregateBy(final String context, final Pipe pipe, final Fields groupingFields, final Fields argFields,
+            final long maxBytes, final int maxEntries) {
+        super(pipe);
+        Pipe tail = new Each(pipe, new Partial(context, groupingFields, argFields, maxBytes, maxEntries), Fields.RESULTS);
+        tail = new GroupBy(tail, groupingFields);
+        tail = new Every(tail, argFields, new Final(context, argFields), Fields.ALL);
+        setTails(tail);
     }
 
-    private static class Partial implements Functor {
+    private static class Entry {
+        private Object agg;
+        private long bytes;
+        private long updates;
+    }
+
+    private static class Cache extends LinkedHashMap<Tuple, Entry> {
+        private long bytes;
+        private TupleEntryCollector collector;
+
+        // Counted locally and reported when the cache is flushed
+        private long hits;
+        private long misses;
+        private long flushes;
+
+        public Cache() {
+            // access order, so the eldest entry is the least recently used
+            super(16, 0.75f, true);
+        }
+    }
+
+    public static class Partial extends BaseOperation<Cache> implements Function<Cache> {
 
         private static final IFn PREPARE = OperationUtil.getVar("prepare");
+        private static final IFn START = OperationUtil.getVar("aggregate-partial-start");
         private static final IFn AGGREGATE = OperationUtil.getVar("aggregate-partial-aggregate");
+        private static final IFn ESTIMATE = OperationUtil.getVar("aggregate-partial-estimate");
         private static final IFn COMPLETE = OperationUtil.getVar("aggregate-partial-complete");
 
-        private final String context;
-        private final Fields fields;
+        // The approximate overhead of a cache entry, not counting the key or value
+        private static final long ENTRY_OVERHEAD = 96;
 
-        public Partial(final String context, final Fields fields) {
+        private final String context;
+        private final Fields groupingFields;
+        private final Fields argFields;
+        private final long maxBytes;
+        private final int maxEntries;
+
+        public Partial(final String context, final Fields groupingFields, final Fields argFields,
+                final long maxBytes, final int maxEntries) {
+            super(groupingFields.isNone() ? argFields : groupingFields.append(argFields));
             this.context = context;
-            this.fields = fields;
+            this.groupingFields = groupingFields;
+            this.argFields = argFields;
+            this.maxBytes = maxBytes;
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        public void prepare(final FlowProcess flowProcess, final OperationCall<Cache> operationCall) {
+            super.prepare(flowProcess, operationCall);
+            operationCall.setContext(new Cache());
         }
 
         @Override
-        public Fields getDeclaredFields() {
-            return this.fields;
+        public void operate(final FlowProcess flowProcess, final FunctionCall<Cache> functionCall) {
+            final Cache cache = functionCall.getContext();
+            cache.collector = functionCall.getOutputCollector();
+
+            final Object context = PREPARE.invoke(this.context);
+            final TupleEntry args = functionCall.getArguments();
+            final Tuple key = args.selectTupleCopy(this.groupingFields);
+            final Object value = args.selectTuple(this.argFields).getObject(0);
+
+            Entry entry = cache.get(key);
+            if (entry == null) {
+                cache.misses++;
+                entry = new Entry();
+                entry.agg = START.invoke(context);
+                entry.bytes = ENTRY_OVERHEAD + keyBytes(key);
+                cache.bytes += entry.bytes;
+                cache.put(key, entry);
+            } else {
+                cache.hits++;
+            }
+
+            entry.agg = AGGREGATE.invoke(context, value, entry.agg);
+            entry.updates++;
+
+            // Re-estimate the size each time the number of updates doubles
+            if (Long.bitCount(entry.updates) == 1) {
+                final long bytes = ENTRY_OVERHEAD + keyBytes(key) + (Long) ESTIMATE.invoke(entry.agg);
+                cache.bytes += bytes - entry.bytes;
+                entry.bytes = bytes;
+            }
+
+            final Iterator<Map.Entry<Tuple, Entry>> eldest = cache.entrySet().iterator();
+            while ((cache.bytes > this.maxBytes || cache.size() > this.maxEntries) && eldest.hasNext()) {
+                final Map.Entry<Tuple, Entry> e = eldest.next();
+                eldest.remove();
+                cache.bytes -= e.getValue().bytes;
+                emit(cache.collector, e.getKey(), e.getValue());
+                cache.flushes++;
+            }
         }
 
         @Override
-        public Tuple aggregate(final FlowProcess flowProcess, final TupleEntry args, final Tuple agg) {
-            return new Tuple(AGGREGATE.invoke(PREPARE.invoke(this.context), args, agg));
+        public void flush(final FlowProcess flowProcess, final OperationCall<Cache> operationCall) {
+            final Cache cache = operationCall.getContext();
+            if (cache != null && cache.collector != null) {
+                for (final Map.Entry<Tuple, Entry> e : cache.entrySet()) {
+                    emit(cache.collector, e.getKey(), e.getValue());
+                }
+            }
+            if (cache != null) {
+                cache.clear();
+                cache.bytes = 0;
+                reportCounters(flowProcess, cache);
+            }
+            super.flush(flowProcess, operationCall);
         }
 
         @Override
-        public Tuple complete(final FlowProcess flowProcess, final Tuple agg) {
-            return (Tuple) COMPLETE.invoke(agg);
+        public void cleanup(final FlowProcess flowProcess, final OperationCall<Cache> operationCall) {
+            final Cache cache = operationCall.getContext();
+            if (cache != null) {
+                reportCounters(flowProcess, cache);
+            }
+            super.cleanup(flowProcess, operationCall);
+        }
+
+        private static void reportCounters(final FlowProcess flowProcess, final Cache cache) {
+            flowProcess.increment(COUNTER_GROUP, COUNTER_HITS, cache.hits);
+            flowProcess.increment(COUNTER_GROUP, COUNTER_MISSES, cache.misses);
+            flowProcess.increment(COUNTER_GROUP, COUNTER_FLUSHES, cache.flushes);
+            cache.hits = 0;
+            cache.misses = 0;
+            cache.flushes = 0;
+        }
+
+        private static void emit(final TupleEntryCollector collector, final Tuple key, final Entry entry) {
+            collector.add(key.append(new Tuple(COMPLETE.invoke(entry.agg))));
+        }
+
+        private static long keyBytes(final Tuple key) {
+            long bytes = 0;
+            for (final Object o : key) {
+                bytes += o instanceof BytesWritable ? ((BytesWritable) o).getLength() : 16;
+            }
+            return bytes;
         }
     }
 
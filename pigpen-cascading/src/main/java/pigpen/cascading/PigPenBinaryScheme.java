@@ -0,0 +1,205 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.cascading;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.FileInputFormat;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+
+import pigpen.io.BinaryFormat;
+import pigpen.io.BinaryReader;
+import pigpen.io.BinaryWriter;
+import cascading.flow.FlowProcess;
+import cascading.scheme.Scheme;
+import cascading.scheme.SinkCall;
+import cascading.scheme.SourceCall;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import clojure.lang.IFn;
+
+/**
+ * Reads and writes the PigPen binary format. Fields are stored exactly as the
+ * PigPen runtime froze them, so values are never re-encoded. Files are split
+ * like any other file; each reader finds the first block in its split using the
+ * sync marker. See pigpen.io.BinaryFormat
+ */
+@SuppressWarnings("rawtypes")
+public class PigPenBinaryScheme extends Scheme<JobConf, RecordReader, OutputCollector, Object[], Object[]> {
+
+    private static final IFn FREEZE = OperationUtil.getVar("cs-freeze");
+
+    public PigPenBinaryScheme(final Fields fields) {
+        super(fields, fields);
+    }
+
+    @Override
+    public void sourceConfInit(final FlowProcess<JobConf> flowProcess,
+            final Tap<JobConf, RecordReader, OutputCollector> tap, final JobConf conf) {
+        conf.setInputFormat(BinaryInputFormat.class);
+    }
+
+    @Override
+    public void sinkConfInit(final FlowProcess<JobConf> flowProcess,
+            final Tap<JobConf, RecordReader, OutputCollector> tap, final JobConf conf) {
+        conf.setOutputFormat(BinaryOutputFormat.class);
+    }
+
+    @Override
+    public void sourcePrepare(final FlowProcess<JobConf> flowProcess, final SourceCall<Object[], RecordReader> sourceCall) {
+        sourceCall.setContext(new Object[] { sourceCall.getInput().createKey(), sourceCall.getInput().createValue() });
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean source(final FlowProcess<JobConf> flowProcess, final SourceCall<Object[], RecordReader> sourceCall)
+            throws IOException {
+        final Object[] context = sourceCall.getContext();
+        if (!sourceCall.getInput().next(context[0], context[1])) {
+            return false;
+        }
+        sourceCall.getIncomingEntry().setTuple((Tuple) context[1]);
+        return true;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void sink(final FlowProcess<JobConf> flowProcess, final SinkCall<Object[], OutputCollector> sinkCall)
+            throws IOException {
+        final Tuple tuple = sinkCall.getOutgoingEntry().getTuple();
+        final byte[][] fields = new byte[tuple.size()][];
+        for (int i = 0; i < fields.length; i++) {
+            Object value = tuple.getObject(i);
+            if (value != null && !(value instanceof BytesWritable)) {
+                value = FREEZE.invoke(value);
+            }
+            if (value != null) {
+                fields[i] = OperationUtil.getBytes((BytesWritable) value);
+            }
+        }
+        sinkCall.getOutput().collect(NullWritable.get(), fields);
+    }
+
+    // ********** Formats **********
+
+    public static class BinaryInputFormat extends FileInputFormat<NullWritable, Tuple> {
+
+        @Override
+        public RecordReader<NullWritable, Tuple> getRecordReader(final InputSplit split, final JobConf job,
+                final Reporter reporter) throws IOException {
+            reporter.setStatus(split.toString());
+            return new BinaryRecordReader(job, (FileSplit) split);
+        }
+    }
+
+    public static class BinaryRecordReader implements RecordReader<NullWritable, Tuple> {
+
+        private final BinaryReader reader;
+        private final long start;
+        private final long end;
+
+        public BinaryRecordReader(final JobConf job, final FileSplit split) throws IOException {
+            final Path path = split.getPath();
+            final FSDataInputStream in = path.getFileSystem(job).open(path);
+            final byte[] sync = BinaryFormat.readHeader(in);
+            this.start = Math.max(split.getStart(), BinaryFormat.HEADER_SIZE);
+            this.end = split.getStart() + split.getLength();
+            in.seek(this.start);
+            this.reader = new BinaryReader(new BufferedInputStream(in), sync, this.start, this.end);
+        }
+
+        @Override
+        public boolean next(final NullWritable key, final Tuple value) throws IOException {
+            final byte[][] fields = this.reader.next();
+            if (fields == null) {
+                return false;
+            }
+            value.clear();
+            for (final byte[] field : fields) {
+                value.add(field == null ? null : new BytesWritable(field));
+            }
+            return true;
+        }
+
+        @Override
+        public NullWritable createKey() {
+            return NullWritable.get();
+        }
+
+        @Override
+        public Tuple createValue() {
+            return new Tuple();
+        }
+
+        @Override
+        public long getPos() throws IOException {
+            return this.reader.getPosition();
+        }
+
+        @Override
+        public float getProgress() throws IOException {
+            if (this.end <= this.start) {
+                return 0.0f;
+            }
+            return Math.min(1.0f, (this.reader.getPosition() - this.start) / (float) (this.end - this.start));
+        }
+
+        @Override
+        public void close() throws IOException {
+            this.reader.close();
+        }
+    }
+
+    public static class BinaryOutputFormat extends FileOutputFormat<NullWritable, byte[][]> {
+
+        @Override
+        public RecordWriter<NullWritable, byte[][]> getRecordWriter(final FileSystem ignored, final JobConf job,
+                final String name, final Progressable progress) throws IOException {
+            final Path file = FileOutputFormat.getTaskOutputPath(job, name);
+            final FileSystem fs = file.getFileSystem(job);
+            final BinaryWriter writer = new BinaryWriter(fs.create(file, progress));
+            return new RecordWriter<NullWritable, byte[][]>() {
+                @Override
+                public void write(final NullWritable key, final byte[][] value) throws IOException {
+                    writer.write(value);
+                }
+
+                @Override
+                public void close(final Reporter reporter) throws IOException {
+                    writer.close();
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.cascading;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cascading.flow.FlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * The second pass of a distributed rank. Values have been tagged with a slice
+ * and an index by RankCounter. The rank of each value is the offset of its
+ * slice, set by RankStepStrategy, plus its index.
+ */
+public class RankAssign extends BaseOperation<Map<Integer, Long>> implements Function<Map<Integer, Long>> {
+
+    private final String id;
+
+    public RankAssign(final String id, final Fields fields) {
+        super(fields);
+        this.id = id;
+    }
+
+    public static String propertyName(final String id) {
+        return "pigpen.rank." + id;
+    }
+
+    @Override
+    public void prepare(final FlowProcess flowProcess, final OperationCall<Map<Integer, Long>> operationCall) {
+        super.prepare(flowProcess, operationCall);
+        final Map<Integer, Long> offsets = new HashMap<Integer, Long>();
+        final String property = flowProcess.getStringProperty(propertyName(this.id));
+        if (property != null && !property.isEmpty()) {
+            for (final String offset : property.split(",")) {
+                final String[] parts = offset.split(":");
+                offsets.put(Integer.valueOf(parts[0]), Long.valueOf(parts[1]));
+            }
+        }
+        operationCall.setContext(offsets);
+    }
+
+    @Override
+    public void operate(final FlowProcess flowProcess, final FunctionCall<Map<Integer, Long>> functionCall) {
+        final TupleEntry args = functionCall.getArguments();
+        final Long offset = functionCall.getContext().get(args.getInteger(0));
+        if (offset == null) {
+            throw new IllegalStateException("No rank offset for " + this.id + " slice " + args.getInteger(0));
+        }
+        final long rank = offset + args.getLong(1);
+        functionCall.getOutputCollector().add(new Tuple(rank, args.getObject(2)));
+    }
+}
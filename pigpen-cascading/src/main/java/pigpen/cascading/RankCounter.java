@@ -0,0 +1,99 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.cascading;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+/**
+ * The first pass of a distributed rank. Tags each value with the slice that
+ * processed it and its index within that slice. The number of values in each
+ * slice is written to a small side file in the output of the step, which
+ * RankStepStrategy turns into an offset for the next step. Counters aren't used
+ * because a job only allows a limited number of them.
+ */
+public class RankCounter extends BaseOperation<long[]> implements Function<long[]> {
+
+    private final String id;
+
+    public RankCounter(final String id, final Fields fields) {
+        super(fields);
+        this.id = id;
+    }
+
+    @Override
+    public void prepare(final FlowProcess flowProcess, final OperationCall<long[]> operationCall) {
+        super.prepare(flowProcess, operationCall);
+        operationCall.setContext(new long[1]);
+    }
+
+    @Override
+    public void operate(final FlowProcess flowProcess, final FunctionCall<long[]> functionCall) {
+        final long[] index = functionCall.getContext();
+        final Object value = functionCall.getArguments().getObject(0);
+        functionCall.getOutputCollector().add(new Tuple(flowProcess.getCurrentSliceNum(), index[0]++, value));
+    }
+
+    @Override
+    public void cleanup(final FlowProcess flowProcess, final OperationCall<long[]> operationCall) {
+        final long[] index = operationCall.getContext();
+        if (index != null && index[0] > 0) {
+            try {
+                writeCount(flowProcess, index[0]);
+            } catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        super.cleanup(flowProcess, operationCall);
+    }
+
+    /**
+     * Writes the count for this slice. The file goes in the work output of the
+     * task attempt, which is only moved to the output of the step when the
+     * attempt is committed. Attempts that fail or are killed may have stopped
+     * part way, so their counts must not be seen.
+     */
+    private void writeCount(final FlowProcess flowProcess, final long count) throws IOException {
+        final JobConf conf = ((HadoopFlowProcess) flowProcess).getJobConf();
+        final Path work = FileOutputFormat.getWorkOutputPath(conf);
+        if (work == null) {
+            throw new IllegalStateException("RankCounter must be in a step that writes to a file");
+        }
+        final Path file = RankStepStrategy.countFile(work, this.id, flowProcess.getCurrentSliceNum());
+        final FSDataOutputStream out = file.getFileSystem(conf).create(file, true);
+        try {
+            out.writeLong(count);
+        } finally {
+            out.close();
+        }
+    }
+}
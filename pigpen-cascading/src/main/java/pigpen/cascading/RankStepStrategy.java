@@ -0,0 +1,142 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.cascading;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+
+import cascading.flow.Flow;
+import cascading.flow.FlowStep;
+import cascading.flow.FlowStepStrategy;
+import cascading.tap.Tap;
+import cascading.tap.hadoop.Hfs;
+
+/**
+ * Before each step runs, reads the counts that RankCounter wrote in the output
+ * of the steps that precede it. The counts for each rank are turned into the
+ * offset of each slice and set as a property for RankAssign.
+ *
+ * The counts are in a hidden directory, so the next step doesn't read them as
+ * data, and are removed along with the intermediate output of the step.
+ *
+ * Another strategy can be specified, which is applied after this one.
+ */
+public class RankStepStrategy implements FlowStepStrategy<JobConf> {
+
+    public static final String COUNTS_DIR = "_pigpen-rank";
+
+    private final FlowStepStrategy<JobConf> next;
+
+    public RankStepStrategy() {
+        this(null);
+    }
+
+    public RankStepStrategy(final FlowStepStrategy<JobConf> next) {
+        this.next = next;
+    }
+
+    /**
+     * The file that holds the count for a slice of a rank, relative to the
+     * output of a step
+     */
+    public static Path countFile(final Path output, final String id, final int slice) {
+        return new Path(new Path(new Path(output, COUNTS_DIR), id), Integer.toString(slice));
+    }
+
+    @Override
+    public void apply(final Flow<JobConf> flow, final List<FlowStep<JobConf>> predecessorSteps, final FlowStep<JobConf> flowStep) {
+        final JobConf conf = flowStep.getConfig();
+        try {
+            for (final FlowStep<JobConf> step : predecessorSteps) {
+                for (final Tap sink : step.getSinks()) {
+                    if (!(sink instanceof Hfs)) {
+                        continue;
+                    }
+                    final Path output = new Path(sink.getIdentifier());
+                    final FileSystem fs = output.getFileSystem(conf);
+                    for (final Map.Entry<String, String> rank : readOffsets(fs, output).entrySet()) {
+                        conf.set(RankAssign.propertyName(rank.getKey()), rank.getValue());
+                    }
+                }
+            }
+        } catch (final IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (this.next != null) {
+            this.next.apply(flow, predecessorSteps, flowStep);
+        }
+    }
+
+    /**
+     * Returns the offsets of each rank that has counts in the output of a step,
+     * as a map of rank id to the value expected by RankAssign. Only the
+     * committed output is read; anything left by other task attempts under
+     * _temporary is ignored.
+     */
+    public static Map<String, String> readOffsets(final FileSystem fs, final Path output) throws IOException {
+        final Map<String, String> offsets = new TreeMap<String, String>();
+        final Path dir = new Path(output, COUNTS_DIR);
+        if (fs.exists(dir)) {
+            for (final FileStatus rank : fs.listStatus(dir)) {
+                offsets.put(rank.getPath().getName(), offsets(readCounts(fs, rank.getPath())));
+            }
+        }
+        return offsets;
+    }
+
+    /**
+     * Returns the count of each slice, sorted by slice. Each committed slice has
+     * exactly one file, named by the slice.
+     */
+    private static Map<Integer, Long> readCounts(final FileSystem fs, final Path rank) throws IOException {
+        final Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (final FileStatus file : fs.listStatus(rank)) {
+            final int slice = Integer.parseInt(file.getPath().getName());
+            final FSDataInputStream in = fs.open(file.getPath());
+            try {
+                counts.put(slice, in.readLong());
+            } finally {
+                in.close();
+            }
+        }
+        return counts;
+    }
+
+    private static String offsets(final Map<Integer, Long> counts) {
+        final StringBuilder offsets = new StringBuilder();
+        long offset = 0;
+        for (final Map.Entry<Integer, Long> slice : counts.entrySet()) {
+            if (offsets.length() > 0) {
+                offsets.append(',');
+            }
+            offsets.append(slice.getKey()).append(':').append(offset);
+            offset += slice.getValue();
+        }
+        return offsets.toString();
+    }
+}
@@ -24,7 +24,7 @@
            (cascading.tap.hadoop Hfs)
            (cascading.tuple Fields Tuple TupleEntry TupleEntryCollector)
            (cascading.operation FunctionCall)
-           (pigpen.cascading PigPenFunction))
+           (pigpen.cascading PigPenFunction RankStepStrategy))
   (:require [clojure.test :refer :all]
             [pigpen.extensions.test :refer [test-diff pigsym-zero pigsym-inc]]
             [pigpen.core :as pigpen]
@@ -157,6 +157,48 @@
     (is (= '(2 4 6) (read-output output1)))
     (is (= '(3 6 9) (read-output output2)))))
 
+(deftest test-rank-multiple-slices
+  (let [input (str input1 "-dir")]
+    (.delete (FileSystem/get (Configuration.)) (Path. input) true)
+    (.mkdirs (File. input))
+    ;; Each file is read by its own slice
+    (doseq [f (range 3)]
+      (write-input (str input "/part-" f) (for [i (range 4)] [f i])))
+    (let [cmd (->> (pigpen/load-clj input)
+                (pigpen/map-indexed vector)
+                (pigpen/store-clj output1))]
+      (.complete (cascading/generate-flow cmd))
+      (let [output (->> (File. output1)
+                     (.listFiles)
+                     (filter #(.startsWith (.getName ^File %) "part-"))
+                     (mapcat #(->> (slurp %)
+                                (clojure.string/split-lines)
+                                (remove clojure.string/blank?)
+                                (map read-string))))]
+        (testing "every value gets a distinct rank"
+          (is (= (range 12) (sort (map first output)))))
+        (testing "ranks within a slice are contiguous and in order"
+          (doseq [[_ ranks] (->> output
+                              (sort-by (comp vec second))
+                              (group-by (comp first second)))]
+            (is (= (map first ranks)
+                   (range (ffirst ranks) (+ (ffirst ranks) 4))))))))))
+
+(deftest test-rank-committed-counts
+  (let [fs (FileSystem/getLocal (Configuration.))
+        output (Path. (str output1 "-counts"))
+        write-count (fn [^Path dir slice n]
+                      (with-open [out (.create fs (RankStepStrategy/countFile dir "rank1" slice) true)]
+                        (.writeLong out n)))]
+    (.delete fs output true)
+    (write-count output 0 4)
+    (write-count output 1 3)
+    (write-count output 2 5)
+    ;; A failed attempt of slice 1 that stopped part way
+    (write-count (Path. output "_temporary/_attempt_local_0001_m_000001_0") 1 1)
+    (is (= {"rank1" "0:0,1:4,2:7"}
+           (RankStepStrategy/readOffsets fs output)))))
+
 (deftest test-performance
   (let [in-fields (Fields. (into-array ["load1/value"]))
         out-fields (Fields. (into-array ["project1/value"]))
@@ -92,3 +92,4 @@ build a PigPen query.
 ;; ********** Local **********
 
 (intern *ns* (with-meta 'dump (meta #'pigpen.local/dump)) @#'pigpen.local/dump)
+(intern *ns* (with-meta 'cache (meta #'pigpen.local/cache)) @#'pigpen.local/cache)
@@ -97,16 +97,25 @@ returns true.
 (defn sample
   "Samples the input records by p percentage. This is non-deterministic;
 different values may selected on subsequent runs. p should be a value
-between 0.0 and 1.0
+between 0.0 and 1.0. Optionally takes a map of options.
 
   Example:
 
     (pig/sample 0.01 foo)
+    (pig/sample 0.01 {:seed 42} foo)
+
+  Options:
+
+    :seed - A seed for the random number generator, so that the same values are
+            selected on subsequent runs (local, rx & cascading only). Pig's
+            SAMPLE has no seed, so it's ignored there and every run selects
+            different values.
 
   Note: This is potentially an expensive operation when run locally.
 
-  See also: pigpen.core/filter, pigpen.core/take
+  See also: pigpen.core/filter, pigpen.core/take, pigpen.fold/reservoir-sample
 "
   {:added "0.1.0"}
-  [p relation]
-  (raw/sample$ p {} relation))
+  ([p relation] (sample p {} relation))
+  ([p opts relation]
+    (raw/sample$ p opts relation)))
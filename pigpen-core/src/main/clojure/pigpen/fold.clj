@@ -24,7 +24,8 @@ See https://github.com/Netflix/PigPen/wiki/Folding-Data
   (:refer-clojure :exclude [vec map mapcat filter remove distinct keep take first last sort sort-by juxt count min min-key max max-key])
   (:require [clojure.set]
             [pigpen.join :refer [fold-fn*]]
-            [pigpen.extensions.core :refer [zipv]]))
+            [pigpen.extensions.core :refer [zipv]])
+  (:import [java.util.concurrent ThreadLocalRandom]))
 
 (defn fold-fn
   "Creates a pre-defined fold operation. Can be used with cogroup and group-by
@@ -259,6 +260,19 @@ comparator is not specified, clojure.core/compare is used.
   ([keyfn c fold]
     (comp-fold (partial clojure.core/sort-by keyfn c) fold)))
 
+(defn ^:private update-accs
+  "Calls (f fold acc x) for each fold, accumulator, and x. Mutable accumulators
+are updated in place, so a new vector is only created when one is replaced."
+  [f folds accs xs]
+  (loop [accs accs
+         i 0]
+    (if (< i (clojure.core/count folds))
+      (let [acc (nth accs i)
+            acc' (f (nth folds i) acc (nth xs i))]
+        (recur (if (identical? acc acc') accs (assoc accs i acc'))
+               (inc i)))
+      accs)))
+
 (defn juxt
   "Applies multiple fold fns to the same data. Produces a vector of results.
 
@@ -267,33 +281,123 @@ comparator is not specified, clojure.core/compare is used.
 "
   {:added "0.2.0"}
   [& folds]
-  (fold-fn
-    ; pre
-    (fn [vals]
-      (for [v vals]
-        (zipv [{:keys [pre]} folds]
-          (pre [v]))))
-    ; combine
-    (fn
-      ([]
-        (zipv [{:keys [combinef]} folds]
-          (combinef)))
-      ([l r]
-        (zipv [{:keys [combinef]} folds
-               l' l
-               r' r]
-          (combinef l' r'))))
-    ; reduce
-    (fn [acc val]
-      (zipv [{:keys [reducef]} folds
-             a' acc
-             v' val]
-        (reduce reducef a' v')))
-    ; post
-    (fn [vals]
-      (zipv [{:keys [post]} folds
-             v' vals]
-        (post v')))))
+  (let [folds (clojure.core/vec folds)]
+    (fold-fn
+      ; pre
+      (fn [vals]
+        (for [v vals]
+          (zipv [{:keys [pre]} folds]
+            (pre [v]))))
+      ; combine
+      (fn
+        ([]
+          (zipv [{:keys [combinef]} folds]
+            (combinef)))
+        ([l r]
+          (update-accs (fn [{:keys [combinef]} l' r'] (combinef l' r')) folds l r)))
+      ; reduce
+      (fn [acc val]
+        (update-accs (fn [{:keys [reducef]} a' v'] (reduce reducef a' v')) folds acc val))
+      ; post
+      (fn [vals]
+        (zipv [{:keys [post]} folds
+               v' vals]
+          (post v'))))))
+
+;; ********** Bytes **********
+
+;; Fixed-width accumulators are kept in byte arrays, which nippy freezes as raw
+;; bytes. These read and write big-endian values in place, without allocating.
+
+(defn ^:private get-long
+  "Reads the long at offset in b"
+  ^long [^bytes b ^long offset]
+  (loop [i 0
+         v 0]
+    (if (< i 8)
+      (recur (inc i) (bit-or (bit-shift-left v 8) (bit-and (aget b (+ offset i)) 0xFF)))
+      v)))
+
+(defn ^:private put-long!
+  "Writes the long v at offset in b"
+  [^bytes b ^long offset ^long v]
+  (loop [i 7
+         v v]
+    (when (<= 0 i)
+      (aset b (+ offset i) (unchecked-byte v))
+      (recur (dec i) (unsigned-bit-shift-right v 8)))))
+
+(defn ^:private get-double
+  "Reads the double at offset in b"
+  ^double [^bytes b ^long offset]
+  (Double/longBitsToDouble (get-long b offset)))
+
+(defn ^:private put-double!
+  "Writes the double v at offset in b"
+  [^bytes b ^long offset ^double v]
+  (put-long! b offset (Double/doubleToRawLongBits v)))
+
+;; ********** Primitive accumulators **********
+
+;; count, sum, and avg accumulate into a small fixed-width byte array, which is
+;; mutated in place within a partition. Between combiner phases, the same array
+;; is frozen as raw bytes. A sum cell is a flag byte that is set once a floating
+;; point value has been seen, followed by a long sum and a double sum. Values
+;; that aren't primitive numbers, such as ratios or bigints, fall back to boxed
+;; math for the remainder of the partition.
+
+(def ^:private sum-width 17)
+
+(defn ^:private integral? [value]
+  (or (instance? Long value)
+      (instance? Integer value)
+      (instance? Short value)
+      (instance? Byte value)))
+
+(defn ^:private floating? [value]
+  (or (instance? Double value)
+      (instance? Float value)))
+
+(defn ^:private add-cell!
+  "Adds value to the sum cell in b. Returns false if value isn't a primitive
+number and must be added as a boxed number."
+  [^bytes b value]
+  (cond
+    (integral? value)
+    (do
+      (put-long! b 1 (Math/addExact (get-long b 1) (long value)))
+      true)
+
+    (floating? value)
+    (do
+      (put-double! b 9 (+ (get-double b 9) (double value)))
+      (aset b 0 (byte 1))
+      true)
+
+    :else false))
+
+(defn ^:private merge-cells!
+  "Adds the sum cell in r to the sum cell in l. Returns l."
+  [^bytes l ^bytes r]
+  (put-long! l 1 (Math/addExact (get-long l 1) (get-long r 1)))
+  (put-double! l 9 (+ (get-double l 9) (get-double r 9)))
+  (aset l 0 (byte (bit-or (aget l 0) (aget r 0))))
+  l)
+
+(defn ^:private cell->number
+  "Returns the sum in a sum cell. This is a long unless a floating point value
+was added."
+  [^bytes b]
+  (if (zero? (aget b 0))
+    (get-long b 1)
+    (+ (get-long b 1) (get-double b 9))))
+
+(defn ^:private get-count ^long [^bytes b ^long offset]
+  (get-long b offset))
+
+(defn ^:private add-count! [^bytes b ^long offset ^long n]
+  (put-long! b offset (Math/addExact (get-long b offset) n))
+  b)
 
 (defn count
   "Counts the values, including nils. Optionally takes another fold operation
@@ -314,7 +418,11 @@ to compose.
 "
   {:added "0.2.0"}
   ([]
-    (fold-fn + (fn [acc _] (inc acc))))
+    (fold-fn (fn
+               ([] (byte-array 8))
+               ([l r] (add-count! l 0 (get-count r 0))))
+             (fn [acc _] (add-count! acc 0 1))
+             (fn [acc] (get-count acc 0))))
   ([fold]
     (comp-fold-new fold (count))))
 
@@ -338,7 +446,19 @@ fold operation to compose.
 "
   {:added "0.2.0"}
   ([]
-    (fold-fn +))
+    ;; The accumulator is a sum cell, or a number once a boxed value is seen
+    (let [->number #(if (number? %) % (cell->number %))]
+      (fold-fn (fn
+                 ([] (byte-array sum-width))
+                 ([l r]
+                   (if (or (number? l) (number? r))
+                     (+ (->number l) (->number r))
+                     (merge-cells! l r))))
+               (fn [acc val]
+                 (if (and (not (number? acc)) (add-cell! acc val))
+                   acc
+                   (+ (->number acc) val)))
+               ->number)))
   ([fold]
     (comp-fold-new fold (sum))))
 
@@ -362,15 +482,26 @@ fold operation to compose.
 "
   {:added "0.2.0"}
   ([]
-    (fold-fn (fn
-               ([] [0 0])
-               ([l r]
-                 (mapv + l r)))
-             (fn [[s c] val]
-               [(+ s val) (inc c)])
-             (fn [[s c]]
-               (when (pos? c)
-                 (/ s c)))))
+    ;; The accumulator is a sum cell followed by a count, or a vector of
+    ;; [sum count] once a boxed value is seen
+    (let [->pair #(if (vector? %) % [(cell->number %) (get-count % sum-width)])]
+      (fold-fn (fn
+                 ([] (byte-array (+ sum-width 8)))
+                 ([l r]
+                   (if (or (vector? l) (vector? r))
+                     (mapv + (->pair l) (->pair r))
+                     (-> l
+                       (merge-cells! r)
+                       (add-count! sum-width (get-count r sum-width))))))
+               (fn [acc val]
+                 (if (and (not (vector? acc)) (add-cell! acc val))
+                   (add-count! acc sum-width 1)
+                   (let [[s c] (->pair acc)]
+                     [(+ s val) (inc c)])))
+               (fn [acc]
+                 (let [[s c] (->pair acc)]
+                   (when (pos? c)
+                     (/ s c)))))))
   ([fold]
     (comp-fold-new fold (avg))))
 
@@ -513,3 +644,473 @@ another fold operation to compose.
       (max-key keyfn fold (vec))
       (max-key keyfn compare fold)))
   ([keyfn comp fold] (min* (clojure.core/comp - (compare-by keyfn comp)) fold)))
+
+;; ********** Sketches **********
+
+;; These folds have a fixed-size state. Within a partition, the accumulator
+;; returned by (combinef) is mutated in place, so no garbage is produced for
+;; each value. Values are hashed with hash64, which is stable across JVMs, so
+;; partial states produced on different machines can be combined.
+
+(defn ^:private mix64
+  "The 64-bit finalizer from MurmurHash3"
+  ^long [^long z]
+  (let [z (unchecked-multiply (bit-xor z (unsigned-bit-shift-right z 33)) -49064778989728563)
+        z (unchecked-multiply (bit-xor z (unsigned-bit-shift-right z 33)) -4265267296055464877)]
+    (bit-xor z (unsigned-bit-shift-right z 33))))
+
+(defn ^:private hash64
+  "A 64-bit hash of a value. Strings and integers use all 64 bits. Other values
+are derived from clojure.core/hash."
+  ^long [value]
+  (cond
+    (string? value)
+    (let [^String s value
+          n (.length s)]
+      (loop [i 0
+             h -3750763034362895579]
+        (if (< i n)
+          (recur (inc i) (unchecked-multiply (bit-xor h (long (int (.charAt s i)))) 1099511628211))
+          (mix64 h))))
+
+    (or (instance? Long value) (instance? Integer value))
+    (mix64 (long value))
+
+    :else
+    (mix64 (long (hash value)))))
+
+(defn ^:private hll-estimate
+  "Estimates the cardinality from a set of HyperLogLog registers"
+  [^bytes registers]
+  (let [m (alength registers)
+        alpha (/ 0.7213 (+ 1.0 (/ 1.079 m)))]
+    (loop [i 0
+           sum 0.0
+           zeros 0]
+      (if (< i m)
+        (let [r (aget registers i)]
+          (recur (inc i)
+                 (+ sum (Math/pow 2.0 (- r)))
+                 (if (zero? r) (inc zeros) zeros)))
+        (let [estimate (/ (* alpha m m) sum)]
+          (Math/round
+            (double
+              (if (and (<= estimate (* 2.5 m)) (pos? zeros))
+                (* m (Math/log (/ (double m) zeros)))
+                estimate))))))))
+
+(defn approx-count-distinct
+  "Estimates the number of distinct values using HyperLogLog. The state is a
+fixed-size array of 2^precision bytes, regardless of the number of values. The
+default precision is 14, which uses 16KB and has a standard error of about 0.8%.
+Valid values of precision are 4 through 18. Optionally takes another fold
+operation to compose.
+
+  Example:
+    (fold/approx-count-distinct)
+    (fold/approx-count-distinct 10 (fold/map :user-id))
+
+    (->>
+      (fold/map :user-id)
+      (fold/approx-count-distinct))
+
+  See also: pigpen.fold/distinct, pigpen.fold/count
+"
+  {:added "0.3.1"}
+  ([] (approx-count-distinct 14 (vec)))
+  ([fold] (approx-count-distinct 14 fold))
+  ([precision fold]
+    {:pre [(integer? precision) (<= 4 precision 18)]}
+    (let [p (long precision)
+          m (bit-shift-left 1 p)
+          max-rank (inc (- 64 p))]
+      (comp-fold-new fold
+                     (fold-fn identity
+                              (fn
+                                ([] (byte-array m))
+                                ([^bytes l ^bytes r]
+                                  (dotimes [i m]
+                                    (when (< (aget l i) (aget r i))
+                                      (aset l i (aget r i))))
+                                  l))
+                              (fn [^bytes registers value]
+                                (let [h (hash64 value)
+                                      i (unsigned-bit-shift-right h (- 64 p))
+                                      rank (clojure.core/min max-rank (inc (Long/numberOfLeadingZeros (bit-shift-left h p))))]
+                                  (when (< (aget registers i) rank)
+                                    (aset registers i (byte rank)))
+                                  registers))
+                              hll-estimate)))))
+
+(defn ^:private kll-capacity
+  "The capacity of a compactor at level h, when there are n levels"
+  [k n h]
+  (inc (long (Math/ceil (* k (Math/pow (/ 2.0 3.0) (- n h 1)))))))
+
+(defn ^:private kll-max-size [k n]
+  (reduce + (clojure.core/map (partial kll-capacity k n) (range n))))
+
+(defn ^:private kll-compress
+  "Compacts the lowest level that is over capacity. Half of the values are
+promoted to the next level, where they each represent twice as many values.
+Stores the capacity of the sketch as :max-size."
+  [{:keys [k levels size] :as sketch}]
+  (let [n (clojure.core/count levels)
+        max-size (kll-max-size k n)]
+    (if (< size max-size)
+      (assoc sketch :max-size max-size)
+      (let [h (->> (range n)
+                (some (fn [h] (when (<= (kll-capacity k n h) (clojure.core/count (levels h))) h))))
+            levels (if (= h (dec n)) (conj levels []) levels)
+            sorted (clojure.core/sort (levels h))
+            [pairs leftover] (split-at (* 2 (quot (clojure.core/count sorted) 2)) sorted)
+            promoted (take-nth 2 (drop (rand-int 2) pairs))
+            levels (-> levels
+                     (assoc h (clojure.core/vec leftover))
+                     (update-in [(inc h)] clojure.core/into promoted))]
+        (recur (assoc sketch
+                      :levels levels
+                      :size (reduce + (clojure.core/map clojure.core/count levels))))))))
+
+(defn ^:private kll-quantile
+  "Returns the value at quantile q, where (<= 0.0 q 1.0). The extremes are
+tracked exactly."
+  [{:keys [lo hi]} weighted total q]
+  (cond
+    (zero? q) lo
+    (== 1.0 q) hi
+    :else
+    (let [target (* q total)]
+      (->> weighted
+        (reductions (fn [[_ acc] [v w]] [v (+ acc w)]) [nil 0])
+        (next)
+        (some (fn [[v acc]] (when (<= target acc) v)))))))
+
+(defn ^:private kll-extreme
+  "Returns the lesser or greater of two values, ignoring nils"
+  [f a b]
+  (cond
+    (nil? a) b
+    (nil? b) a
+    (f (compare a b)) a
+    :else b))
+
+(defn approx-quantiles
+  "Estimates the values at the specified quantiles using a KLL sketch. The
+parameter `qs` is a sequence of quantiles between 0.0 and 1.0. Returns a vector
+with a value for each quantile. The state holds about 3k values, regardless of
+the number of values; larger values of k are more accurate. The default k is
+200, which has an error in rank of about 1.5%. All values must be comparable.
+Optionally takes another fold operation to compose.
+
+  Example:
+    (fold/approx-quantiles [0.5 0.9 0.99])
+    (fold/approx-quantiles [0.5 0.9 0.99] (fold/map :latency))
+
+    (->>
+      (fold/map :latency)
+      (fold/approx-quantiles 400 [0.5 0.99]))
+
+  See also: pigpen.fold/sort, pigpen.fold/approx-count-distinct
+"
+  {:added "0.3.1"}
+  ([qs] (approx-quantiles 200 qs (vec)))
+  ([qs fold]
+    (if (number? qs)
+      (approx-quantiles qs fold (vec))
+      (approx-quantiles 200 qs fold)))
+  ([k qs fold]
+    {:pre [(integer? k) (pos? k) (every? #(<= 0.0 % 1.0) qs)]}
+    (comp-fold-new fold
+                   (fold-fn identity
+                            (fn
+                              ([] {:k k, :levels [[]], :size 0, :max-size (kll-max-size k 1), :lo nil, :hi nil})
+                              ([l r]
+                                (let [n (clojure.core/max (clojure.core/count (:levels l))
+                                                          (clojure.core/count (:levels r)))
+                                      pad #(clojure.core/into % (repeat (- n (clojure.core/count %)) []))]
+                                  (kll-compress
+                                    {:k k
+                                     :levels (mapv clojure.core/into (pad (:levels l)) (pad (:levels r)))
+                                     :size (+ (:size l) (:size r))
+                                     :lo (kll-extreme neg? (:lo l) (:lo r))
+                                     :hi (kll-extreme pos? (:hi l) (:hi r))}))))
+                            (fn [{:keys [levels size max-size lo hi] :as sketch} value]
+                              ;; Only compact once the sketch is over capacity
+                              (let [size (inc size)
+                                    sketch (assoc sketch
+                                                  :levels (assoc levels 0 (conj (levels 0) value))
+                                                  :size size
+                                                  :lo (kll-extreme neg? lo value)
+                                                  :hi (kll-extreme pos? hi value))]
+                                (if (< size max-size)
+                                  sketch
+                                  (kll-compress sketch))))
+                            (fn [{:keys [levels] :as sketch}]
+                              (let [weighted (->> levels
+                                               (map-indexed (fn [h vs]
+                                                              (let [w (bit-shift-left 1 h)]
+                                                                (clojure.core/map (fn [v] [v w]) vs))))
+                                               (apply concat)
+                                               (clojure.core/sort-by clojure.core/first))
+                                    total (reduce + (clojure.core/map second weighted))]
+                                (mapv (partial kll-quantile sketch weighted total) qs)))))))
+
+(defn ^:private hash-index
+  "The i-th of a family of indexes in [0, width) derived from a single hash"
+  ^long [^long h ^long width ^long i]
+  (let [h1 (bit-and h 0xFFFFFFFF)
+        h2 (unsigned-bit-shift-right h 32)]
+    (mod (+ h1 (* i h2)) width)))
+
+(defn count-min-sketch
+  "Builds a count-min sketch of the values, which can be used to estimate the
+frequency of any value with pigpen.fold/count-min-estimate. The state is a
+fixed-size table of depth rows and width columns of longs, which is kept in a
+byte array so that it freezes compactly. Estimates are never too low
+and are too high by at most 2n/width with probability 1 - 1/2^depth, where n is
+the total number of values. The default width is 2048 and depth is 5.
+Optionally takes another fold operation to compose.
+
+  Example:
+    (fold/count-min-sketch)
+    (fold/count-min-sketch 4096 7 (fold/map :word))
+
+    (pig/fold (fold/count-min-sketch) words)
+    (pig/map (fn [sketch] (fold/count-min-estimate sketch \"foo\")))
+
+  See also: pigpen.fold/count-min-estimate, pigpen.fold/heavy-hitters
+"
+  {:added "0.3.1"}
+  ([] (count-min-sketch 2048 5 (vec)))
+  ([fold] (count-min-sketch 2048 5 fold))
+  ([width depth fold]
+    {:pre [(integer? width) (pos? width) (integer? depth) (pos? depth)]}
+    (let [width (long width)
+          depth (long depth)
+          n (* width depth)]
+      (comp-fold-new fold
+                     (fold-fn identity
+                              (fn
+                                ([] (byte-array (* 8 n)))
+                                ([^bytes l ^bytes r]
+                                  (dotimes [i n]
+                                    (let [o (* 8 i)]
+                                      (put-long! l o (+ (get-long l o) (get-long r o)))))
+                                  l))
+                              (fn [^bytes table value]
+                                (let [h (hash64 value)]
+                                  (dotimes [i depth]
+                                    (let [o (* 8 (+ (* i width) (hash-index h width i)))]
+                                      (put-long! table o (inc (get-long table o)))))
+                                  table))
+                              (fn [table]
+                                {:width width
+                                 :depth depth
+                                 :table table}))))))
+
+(defn count-min-estimate
+  "Estimates the number of times value was seen by a count-min sketch produced
+by pigpen.fold/count-min-sketch.
+
+  Example:
+    (fold/count-min-estimate sketch \"foo\")
+
+  See also: pigpen.fold/count-min-sketch
+"
+  {:added "0.3.1"}
+  [{:keys [width depth ^bytes table]} value]
+  (let [h (hash64 value)
+        width (long width)]
+    (->> (range depth)
+      (clojure.core/map (fn [i] (get-long table (* 8 (+ (* i width) (hash-index h width i))))))
+      (reduce clojure.core/min))))
+
+(defn bloom-filter
+  "Builds a Bloom filter of the values, which can be used to test whether a
+value may have been present with pigpen.fold/bloom-contains?. The filter is
+sized to hold n distinct values with a false positive rate of fpp. The state is
+a fixed-size bit array of about -n*ln(fpp)/ln(2)^2 bits; the defaults, one
+million values at 1%, use 1.2MB. Optionally takes another fold operation to
+compose.
+
+  Example:
+    (fold/bloom-filter)
+    (fold/bloom-filter 10000 0.001 (fold/map :id))
+
+    (pig/fold (fold/bloom-filter) ids)
+    (pig/map (fn [bf] (fold/bloom-contains? bf 42)))
+
+  See also: pigpen.fold/bloom-contains?, pigpen.core/filter-by
+"
+  {:added "0.3.1"}
+  ([] (bloom-filter 1000000 0.01 (vec)))
+  ([fold] (bloom-filter 1000000 0.01 fold))
+  ([n fpp fold]
+    {:pre [(integer? n) (pos? n) (< 0.0 fpp 1.0)]}
+    (let [ln2 (Math/log 2.0)
+          width (-> (- n)
+                  (* (Math/log fpp))
+                  (/ (* ln2 ln2))
+                  (/ 8.0)
+                  (Math/ceil)
+                  (long)
+                  (clojure.core/max 1))
+          bits (* 8 width)
+          hashes (clojure.core/max 1 (Math/round (* (/ (double bits) n) ln2)))]
+      (comp-fold-new fold
+                     (fold-fn identity
+                              (fn
+                                ([] (byte-array width))
+                                ([^bytes l ^bytes r]
+                                  (dotimes [i width]
+                                    (aset l i (unchecked-byte (bit-or (aget l i) (aget r i)))))
+                                  l))
+                              (fn [^bytes b value]
+                                (let [h (hash64 value)]
+                                  (dotimes [i hashes]
+                                    (let [j (hash-index h bits i)
+                                          k (quot j 8)]
+                                      (aset b k (unchecked-byte (bit-set (aget b k) (rem j 8))))))
+                                  b))
+                              (fn [b]
+                                {:hashes hashes
+                                 :bits b}))))))
+
+(defn bloom-contains?
+  "Returns true if value may have been added to a Bloom filter produced by
+pigpen.fold/bloom-filter, or false if it definitely wasn't.
+
+  Example:
+    (fold/bloom-contains? bf 42)
+
+  See also: pigpen.fold/bloom-filter
+"
+  {:added "0.3.1"}
+  [{:keys [hashes ^bytes bits]} value]
+  (let [h (hash64 value)
+        n (* 8 (alength bits))]
+    (loop [i 0]
+      (if (< i hashes)
+        (let [j (hash-index h n i)]
+          (if (bit-test (aget bits (quot j 8)) (rem j 8))
+            (recur (inc i))
+            false))
+        true))))
+
+(defn ^:private top-counts
+  "Keeps the k values with the highest counts"
+  [k counts]
+  (if (<= (clojure.core/count counts) k)
+    counts
+    (->> counts
+      (clojure.core/sort-by val >)
+      (clojure.core/take k)
+      (clojure.core/into {}))))
+
+(defn ^:private merge-heavy-hitters
+  "Merges two Space-Saving states. A full state may have evicted any value it
+doesn't hold, after up to its lowest count of occurrences, so that count is
+added to values that are missing from it."
+  [k l r]
+  (let [floor (fn [counts]
+                (if (< (clojure.core/count counts) k)
+                  0
+                  (reduce clojure.core/min (vals counts))))
+        floor-l (floor l)
+        floor-r (floor r)]
+    (->> (clojure.core/concat (keys l) (keys r))
+      (clojure.core/distinct)
+      (clojure.core/map (fn [v] [v (+ (get l v floor-l) (get r v floor-r))]))
+      (clojure.core/into {})
+      (top-counts k))))
+
+(defn heavy-hitters
+  "Returns the k most frequent values, along with an estimate of their counts,
+using the Space-Saving algorithm. The state holds at most k values, regardless
+of the number of values. Counts are exact when there are no more than k distinct
+values; otherwise they may be overestimated. Returns a vector of [value count]
+pairs, sorted by count descending. Optionally takes another fold operation to
+compose.
+
+  Example:
+    (fold/heavy-hitters 10)
+    (fold/heavy-hitters 10 (fold/map :word))
+
+    (->>
+      (fold/map :word)
+      (fold/heavy-hitters 100))
+
+  See also: pigpen.fold/top, pigpen.fold/count-min-sketch
+"
+  {:added "0.3.1"}
+  ([k] (heavy-hitters k (vec)))
+  ([k fold]
+    {:pre [(integer? k) (pos? k)]}
+    (comp-fold-new fold
+                   (fold-fn identity
+                            (fn
+                              ([] {})
+                              ([l r]
+                                (merge-heavy-hitters k l r)))
+                            (fn [counts value]
+                              (cond
+                                (contains? counts value)
+                                (update-in counts [value] inc)
+
+                                (< (clojure.core/count counts) k)
+                                (assoc counts value 1)
+
+                                ;; Replace the value with the lowest count
+                                :else
+                                (let [[v c] (apply clojure.core/min-key val counts)]
+                                  (-> counts
+                                    (dissoc v)
+                                    (assoc value (inc c))))))
+                            (fn [counts]
+                              (->> counts
+                                (clojure.core/sort-by val >)
+                                (mapv (fn [[v c]] [v c]))))))))
+
+(defn reservoir-sample
+  "Returns a uniform random sample of k values, without replacement. If there
+are k or fewer values, all of them are returned. Each value is assigned a random
+priority and the k values with the lowest priorities are kept, so partial
+samples can be combined. The state holds at most k values. Optionally takes
+another fold operation to compose.
+
+  Example:
+    (fold/reservoir-sample 100)
+
+    (pig/group-by :user-id
+                  {:fold (fold/reservoir-sample 10 (fold/map :page))}
+                  views)
+
+  See also: pigpen.core/sample, pigpen.fold/take
+"
+  {:added "0.3.1"}
+  ([k] (reservoir-sample k (vec)))
+  ([k fold]
+    {:pre [(integer? k) (pos? k)]}
+    (comp-fold-new fold
+                   (fold-fn identity
+                            (fn
+                              ([] (sorted-map))
+                              ([l r]
+                                (->> (merge l r)
+                                  (clojure.core/take k)
+                                  (clojure.core/into (sorted-map)))))
+                            (fn [sample value]
+                              (let [priority (.nextDouble (ThreadLocalRandom/current))]
+                                (cond
+                                  (< (clojure.core/count sample) k)
+                                  (assoc sample priority value)
+
+                                  (< priority (key (clojure.core/first (rseq sample))))
+                                  (-> sample
+                                    (dissoc (key (clojure.core/first (rseq sample))))
+                                    (assoc priority value))
+
+                                  :else sample)))
+                            (fn [sample]
+                              (clojure.core/vec (vals sample)))))))
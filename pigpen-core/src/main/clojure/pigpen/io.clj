@@ -28,8 +28,17 @@
 (set! *warn-on-reflection* true)
 
 (defmacro load-binary
-  "Loads data stored in the pigpen binary format. This is generally not used
-unless debugging scripts."
+  "Loads data stored in the PigPen binary format. Values are stored as the
+runtime freezes them, so intermediate data can be saved and reloaded without
+converting it to text. Files are compressed in blocks and can be split. The
+parameter `fields` names the stored fields and defaults to [value].
+
+  Example:
+
+    (pig-io/load-binary \"intermediate\")
+
+  See also: pigpen.io/store-binary
+"
   ([location] `(load-binary ~location [~'value]))
   ([location fields]
     `(raw/load$ ~location :binary '~fields {})))
@@ -149,8 +158,15 @@ the specified delimiter. The default delimiter is \\t.
     (load-string* location '[pigpen.extensions.core] `(fn [~'s] (pigpen.extensions.core/lazy-split ~'s ~delimiter)))))
 
 (defn store-binary
-  "Stores data in the PigPen binary format. This is generally not used
-unless debugging scripts."
+  "Stores data in the PigPen binary format. This is useful for passing data
+between scripts or checkpointing a long script. Use load-binary to read it.
+
+  Example:
+
+    (pig-io/store-binary \"intermediate\" foo)
+
+  See also: pigpen.io/load-binary
+"
   [location relation]
   (->> relation
     (raw/project$ (map raw/projection-field$ (:fields relation)) {})
@@ -163,6 +163,55 @@ but is a function and `fold` must be quoted.
   [_ fields]
   (filterv (comp '#{key} symbol name) fields))
 
+(def ^:private bloom-filter-defaults
+  {:expected-keys 1000000
+   :false-positive-rate 0.01})
+
+(defn ^:private bloom-filter-select
+  "Removes values from the relation in select whose keys are definitely not in
+the Bloom filter `bf`. The filter is a relation with a single value, which is
+attached to every value with a replicated join. This happens map-side, before
+the relation is shuffled. The join is marked with :broadcast so that platforms
+that don't replicate joins by default, such as cascading, can ship the filter
+to each mapper."
+  [bf {:keys [from key-selector on by] :as select}]
+  (let [key-selector (or key-selector on by 'identity)
+        const-bind (fn [relation]
+                     (select->bind {:join-nils true}
+                                   {:from relation
+                                    :key-selector '(constantly 0)}))
+        {:keys [fields], :as c} (raw/join$ :join
+                                           [:required :required]
+                                           {:strategy :replicated
+                                            :broadcast true}
+                                           [(const-bind from) (const-bind bf)])]
+    (assoc select :from
+           (raw/bind$ '[pigpen.fold]
+                      `(pigpen.runtime/mapcat->bind
+                         (let [key-selector# ~key-selector]
+                           (fn [value# bf#]
+                             (when (pigpen.fold/bloom-contains? bf# (key-selector# value#))
+                               [value#]))))
+                      {:args (filterv (comp '#{value} symbol name) fields)}
+                      c))))
+
+(defn ^:private bloom-filter-selects
+  "Builds a Bloom filter of the keys in the first select clause and uses it to
+pre-filter the relations in all of the other select clauses."
+  [{:keys [bloom-filter]} [{:keys [from key-selector on by type]} & others :as selects]]
+  (assert (= :required (or type :required))
+          "The first relation must be required to use a bloom filter")
+  (let [{:keys [expected-keys false-positive-rate]} (merge bloom-filter-defaults
+                                                           (when (map? bloom-filter)
+                                                             bloom-filter))
+        bf (->> from
+             (raw/bind$ `(pigpen.runtime/map->bind ~(or key-selector on by 'identity)) {})
+             (fold* `(pigpen.runtime/with-ns pigpen.fold
+                       (pigpen.fold/bloom-filter ~expected-keys ~false-positive-rate
+                                                 (pigpen.fold/vec)))))]
+    (vec (cons (first selects)
+               (map (partial bloom-filter-select bf) others)))))
+
 (defn join*
   "Similar to pigpen.core/join, but is a function and takes a quoted function
 as an argument. Also takes select clauses as maps.
@@ -180,8 +229,12 @@ as an argument. Also takes select clauses as maps.
    :added "0.3.0"}
   ([selects f]
     (join* selects f {}))
-  ([selects f {:keys [all-args] :as opts}]
-    (let [relations  (mapv (partial select->bind opts) selects)
+  ([selects f {:keys [all-args bloom-filter] :as opts}]
+    (let [selects    (if bloom-filter
+                       (bloom-filter-selects opts selects)
+                       selects)
+          opts       (dissoc opts :bloom-filter)
+          relations  (mapv (partial select->bind opts) selects)
           join-types (mapv #(get % :type :required) selects)
           fields     (mapcat :fields relations)
           values     (if all-args
@@ -205,7 +258,11 @@ Optionally takes a map of options, including :parallel and :fold.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
+    :fold-cache - Limits for the map-side cache of partially folded values,
+                  a map of :max-bytes (default 64MB) and :max-entries
+                  (default 10000). When either is exceeded, the least recently
+                  used values are flushed. (cascading only)
 
   See also: pigpen.core/cogroup
 
@@ -341,8 +398,10 @@ info on fold functions.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
     :join-nils - Whether nil keys from each relation should be treated as equal
+    :fold-cache - Limits for the map-side cache of partially folded values. See
+                  pigpen.core/group-by (cascading only)
 
   See also: pigpen.core/join, pigpen.core/group-by
 "
@@ -384,8 +443,14 @@ options.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
     :join-nils - Whether nil keys from each relation should be treated as equal
+    :bloom-filter - Build a bloom filter of the keys in the first relation and
+                    use it to remove values from the other relations before
+                    they are shuffled. Use this when the first relation is small
+                    and matches a small fraction of the others. Either true or a
+                    map of :expected-keys (default 1000000) and
+                    :false-positive-rate (default 0.01).
 
   See also: pigpen.core/cogroup, pigpen.core/union
 "
@@ -424,7 +489,11 @@ as a semi-join in relational databases.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
+    :bloom-filter - Build a bloom filter of keys and use it to remove values
+                    from relation before it is shuffled. Either true or a map of
+                    :expected-keys (default 1000000) and :false-positive-rate
+                    (default 0.01). See pigpen.core/join
 
   Note: keys must be distinct before this is used or you will get duplicate values.
   Note: Unlike filter, this joins relation with keys and can be potentially expensive.
@@ -463,7 +532,7 @@ referred to as an anti-join in relational databases.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
 
   Note: Unlike remove, this joins relation with keys and can be potentially expensive.
 
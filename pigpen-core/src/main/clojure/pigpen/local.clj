@@ -23,11 +23,17 @@
             [pigpen.runtime]
             [pigpen.raw :as raw]
             [pigpen.oven :as oven]
+            [pigpen.local.cache :as cache]
+            [pigpen.local.record :as record]
+            [pigpen.local.compress :as compress]
+            [taoensso.nippy :as nippy]
             [clojure.java.io :as io]
             [pigpen.extensions.io :refer [list-files]]
             [pigpen.extensions.core :refer [forcat zipv]])
   (:import [java.io Closeable]
-           [java.io Writer]))
+           [java.io Writer]
+           [java.util Random]
+           [pigpen.io BinaryReader BinaryReader$Block BinaryWriter]))
 
 ; For local mode, we want to differentiate between nils in the data and nils as
 ; the lack of existence of data. We convert nil values into a sentinel nil value
@@ -70,7 +76,7 @@
   (if head
     (for [value head
           child (cross-product more)]
-      (merge child value))
+      (record/combine value child))
     [{}]))
 
 (defn pigpen-comparator [comp]
@@ -78,11 +84,11 @@
     :asc compare
     :desc (clojure.core/comp - compare)))
 
-(defn update-field-ids [id]
-  (fn [vs]
-    (->> vs
-      (map (fn [[f v]] [(raw/update-ns id f) v]))
-      (into {}))))
+(defn update-field-ids
+  "Returns a fn that moves the fields of a record into the namespace `id`. This
+only changes the schema of the record; the values are shared."
+  [id]
+  (record/rename id))
 
 (defmulti eval-func (fn [udf f args] udf))
 
@@ -96,26 +102,22 @@
     (mapv remove-sentinel-nil)
     pre
     (split-at (/ (count values) 2))
-    (map (partial reduce reducef (combinef)))
+    ;; Each partition gets its own seed - it may be mutable
+    (map #(reduce reducef (combinef) %))
     (reduce combinef)
     post
     vector))
 
-(defmulti eval-expr
-  (fn [state expr values]
+(defmulti expr->fn
+  "Returns a fn that evaluates expr for a single record"
+  (fn [state expr]
     (:type expr)))
 
-(s/defmethod eval-expr :field
+(s/defmethod expr->fn :field
   [state
-   {:keys [field]} :- m/FieldExpr
-   values]
-  [(values field)])
-
-(defn field-lookup [values arg]
-  (cond
-    (string? arg) arg
-    (symbol? arg) (get values arg)
-    :else (throw (ex-info "Unknown arg" {:arg arg, :values values}))))
+   {:keys [field]} :- m/FieldExpr]
+  (fn [values]
+    [(values field)]))
 
 (defn eval-user-code [state f]
   (let [cache (:code-cache state)]
@@ -125,18 +127,18 @@
         (swap! cache assoc f ret)
         ret))))
 
-(s/defmethod eval-expr :code
+(s/defmethod expr->fn :code
   [state
-   {:keys [udf init func args]} :- m/CodeExpr
-   values]
+   {:keys [udf init func args]} :- m/CodeExpr]
   (eval-user-code state init)
   (let [f (eval-user-code state func)
-        arg-values (map (partial field-lookup values) args)]
-    (eval-func udf f arg-values)))
+        select (record/selector args)]
+    (fn [values]
+      (eval-func udf f (select values)))))
 
 (defmulti graph->local (fn [state data command] (:type command)))
 
-(defn graph->local+ [state data {:keys [id ancestors fields] :as command}]
+(defn graph->local+ [state data {:keys [id ancestors fields opts] :as command}]
   ;(prn 'id id)
   (let [ancestor-data (mapv data ancestors)
         ;_ (prn 'ancestor-data ancestor-data)
@@ -145,8 +147,12 @@
        (assert (= (set (keys (first result))) (set fields))
                (str "Field difference. Expecting " fields " Actual " (keys (first result)))))
     ;(prn 'result result)
+    (when-let [key (:cache-key opts)]
+      (cache/write-entry! (:cache state) key fields result))
     (assoc data id result)))
 
+(declare cache-opts cache-commands)
+
 ;; TODO add a version that returns a multiset
 (defn dump
   "Executes a script locally and returns the resulting values as a clojure
@@ -175,12 +181,17 @@ sequence. This command is very useful for unit tests.
 
   Note: The original rx pigpen.core/dump command is now pigpen.rx/dump. This
         implementation uses lazy seqs instead.
+
+  Options:
+
+    :cache - Options for the relation cache. See pigpen.local/cache.
 "
   {:added "0.3.0"}
   ([query] (dump {} query))
   ([opts query]
-    (let [state {:code-cache (atom {})}
-          graph (oven/bake :local {} opts query)
+    (let [state {:code-cache (atom {})
+                 :cache (cache-opts opts)}
+          graph (oven/bake :local {cache-commands 4.5} opts query)
           last-command (:id (last graph))]
       (->> graph
         (reduce (partial graph->local+ state) {})
@@ -190,8 +201,8 @@ sequence. This command is very useful for unit tests.
 ;; ********** IO **********
 
 (s/defmethod graph->local :return
-  [_ _ {:keys [data]} :- m/Return]
-  data)
+  [_ _ {:keys [fields data]} :- m/Return]
+  (map (partial record/from-map (record/schema fields)) data))
 
 ; Override these to tweak how files are listed and read with the load loader.
 ; This is useful for reading from S3
@@ -201,17 +212,37 @@ sequence. This command is very useful for unit tests.
 (defmethod load-list :default [location]
   (list-files location))
 
+; Returns the total number of bytes at a location, or nil if it's unknown. This
+; is used to estimate parallelism; see pigpen.parallel
+
+(defmulti load-size (fn [location] (second (re-find #"^([a-z0-9]+)://" location))))
+
+(defmethod load-size :default [location]
+  ;; Only local files can be measured here
+  (when-not (re-find #"^([a-z0-9]+)://" location)
+    (let [size (->> (list-files location)
+                 (map (fn [f] (.length (io/file f))))
+                 (reduce +))]
+      (when (pos? size)
+        size))))
+
 (defmulti load-reader (fn [location] (second (re-find #"^([a-z0-9]+)://" location))))
 
+; Locations ending in .gz, .bz2, or .snappy are compressed. Files written in
+; blocks by store-writer are decompressed in parallel. See pigpen.local.compress
+
 (defmethod load-reader :default [^String location]
-  (if (.endsWith location ".gz")
-    (io/reader (java.util.zip.GZIPInputStream. (io/input-stream location)))
-    (io/reader (io/input-stream location))))
+  (io/reader
+    (if-let [codec (compress/location-codec location)]
+      (compress/input-stream codec (io/input-stream location))
+      (io/input-stream location))))
 
 (defmulti store-writer (fn [location] (second (re-find #"^([a-z0-9]+)://" location))))
 
 (defmethod store-writer :default [location]
-  (io/writer location))
+  (if-let [codec (compress/location-codec location)]
+    (io/writer (compress/output-stream codec (io/output-stream location)))
+    (io/writer location)))
 
 ; Create one of these to provide a loader for another storage format, such as parquet
 
@@ -265,16 +296,67 @@ sequence. This command is very useful for unit tests.
     (close-writer [_ writer]
       (.close ^Writer writer))))
 
+;; ********** Binary **********
+
+; The PigPen binary format. Values are frozen the same way that the runtime
+; freezes them on other platforms, so files can be shared between them. See
+; pigpen.io.BinaryFormat
+
+(def ^:private byte-array-class (Class/forName "[B"))
+
+(defn ^:private freeze-field [value]
+  (let [value (remove-sentinel-nil value)]
+    (when-not (nil? value)
+      (nippy/freeze value {:compressor nil, :skip-header? true}))))
+
+(defn ^:private thaw-field [^bytes value]
+  (when value
+    (nippy/thaw value {:compressor nil
+                       :encryptor nil
+                       :v1-compatibility? false})))
+
+(s/defmethod load :binary
+  [{:keys [location fields]} :- m/Load]
+  (reify PigPenLocalLoader
+    (locations [_]
+      ;; Skip hadoop markers, such as _SUCCESS
+      (remove #(.startsWith (.getName (io/file %)) "_") (load-list location)))
+    (init-reader [_ file]
+      (BinaryReader. (io/input-stream file)))
+    (read [_ reader]
+      ;; Blocks are read in order, but decompressed and thawed in parallel
+      (->> (repeatedly #(.nextBlock ^BinaryReader reader))
+        (take-while identity)
+        (compress/pmap-blocks
+          (fn [^BinaryReader$Block block]
+            (mapv (fn [values] (zipmap fields (map thaw-field values)))
+                  (.decode block))))
+        (mapcat identity)))
+    (close-reader [_ reader]
+      (.close ^BinaryReader reader))))
+
+(s/defmethod store :binary
+  [{:keys [location args]} :- m/Store]
+  (reify PigPenLocalStorage
+    (init-writer [_]
+      (BinaryWriter. (io/output-stream location)))
+    (write [_ writer value]
+      (.write ^BinaryWriter writer
+        ^"[[B" (into-array byte-array-class (map #(freeze-field (get value %)) args))))
+    (close-writer [_ writer]
+      (.close ^BinaryWriter writer))))
+
 ; Uses the abstractions defined above to load the data
 
 (s/defmethod graph->local :load
-  [_ _ command :- m/Load]
-  (let [local-loader (load command)]
+  [_ _ {:keys [fields] :as command} :- m/Load]
+  (let [local-loader (load command)
+        schema (record/schema fields)]
     (vec
       (forcat [file (locations local-loader)]
         (let [reader (init-reader local-loader file)]
           (try
-            (vec (read local-loader reader))
+            (mapv (partial record/from-map schema) (read local-loader reader))
             (finally
               (close-reader local-loader reader))))))))
 
@@ -287,36 +369,132 @@ sequence. This command is very useful for unit tests.
     (close-writer local-storage writer)
     data))
 
+;; ********** Cache **********
+
+(defn cache
+  "Caches the output of relation when run locally. The first time the script is
+run, the data is written to a local directory. Subsequent runs with the same
+command and the same input files will read the cached data instead of
+recomputing it. This is useful for development and unit tests that repeatedly
+run the same expensive prefix of a script. On other platforms, this is a no-op.
+
+  Example:
+
+    (->>
+      (pig/load-clj \"input.clj\")
+      (pig/map expensive-fn)
+      (pig/cache)
+      (pig/filter even?)
+      (pig/dump))
+
+  Options, passed to pigpen.core/dump as :cache
+
+    :dir - The directory to store cached data in. Defaults to pigpen-cache in
+           java.io.tmpdir.
+    :max-bytes - The maximum size of the cache. The least recently used entries
+                 are removed first. Defaults to 1GB.
+    :auto - When true, the output of every group and join is also cached.
+
+  Example:
+
+    (pig/dump {:cache {:dir \"build/cache\", :auto true}} query)
+
+  Note: Cache entries are keyed on the command, its ancestors, and the name,
+        size, and modification time of any input files. Closures over values
+        that can't be printed won't be detected as changes.
+"
+  {:added "0.3.1"}
+  [relation]
+  (raw/noop$ {:cache true} relation))
+
+(defn cache-opts [opts]
+  (when-not (false? (:cache opts))
+    (merge cache/default-opts (:cache opts))))
+
+(defn ^:private cache-point? [{:keys [auto]} {:keys [type opts]}]
+  (or (:cache opts)
+      (and auto (#{:group :join} type))))
+
+(defn ^:private load-fingerprint [{:keys [location storage]}]
+  [location
+   (try
+     (cache/file-fingerprint (load-list location))
+     (catch Exception _ storage))])
+
+(defn cache-commands
+  "Finds commands to be cached. If a valid cache entry is present, the command is
+replaced with a load from the cache. Otherwise the command is marked so that the
+result is written to the cache."
+  [opts commands]
+  (when-let [cache-opts (cache-opts opts)]
+    (let [lookup (->> commands (map (juxt :id identity)) (into {}))]
+      (for [{:keys [id fields field-type description] :as c} commands]
+        (if (cache-point? cache-opts c)
+          (let [key (cache/command-key lookup load-fingerprint c)]
+            (if-let [location (cache/entry-location cache-opts key)]
+              {:type :load
+               :id id
+               :description description
+               :location location
+               :storage :cache
+               :fields fields
+               :field-type field-type
+               :opts {:type :load-opts}}
+              (assoc-in c [:opts :cache-key] key)))
+          c)))))
+
+(s/defmethod load :cache
+  [{:keys [location fields]} :- m/Load]
+  (reify PigPenLocalLoader
+    (locations [_]
+      [location])
+    (init-reader [_ file]
+      (cache/open-reader file))
+    (read [_ reader]
+      (cache/read-rows reader fields))
+    (close-reader [_ reader]
+      (.close ^Closeable reader))))
+
 ;; ********** Map **********
 
-(s/defmethod graph->local :projection
-  [state values {:keys [expr flatten alias]} :- m/Projection]
-  (let [result (eval-expr state expr values)]
+(s/defn projection->fn
+  "Returns a fn that evaluates a projection for a single record. The fn returns
+a seq of records with the fields of alias."
+  [state {:keys [expr flatten alias]} :- m/Projection]
+  (let [f (expr->fn state expr)
+        schema (record/schema alias)]
     (if flatten
-      (map (partial zipmap alias) result)
-      (zipmap alias result))))
+      (fn [values]
+        (map (partial record/from-values schema) (f values)))
+      (fn [values]
+        [(record/from-values schema (f values))]))))
+
+(defn project->fn
+  "Returns a fn that evaluates all of the projections for a single record and
+returns a seq of the resulting records"
+  [state projections]
+  (let [fs (mapv (partial projection->fn state) projections)]
+    (if (= 1 (count fs))
+      (first fs)
+      (fn [values]
+        (cross-product (map #(% values) fs))))))
 
 (s/defmethod graph->local :project
   [state [data] {:keys [projections] :as c} :- m/Project]
-  (mapcat
-    (fn [values]
-      (->> projections
-        (map (partial graph->local state values))
-        (cross-product)))
-    data))
+  (mapcat (project->fn state projections) data))
 
 (s/defmethod graph->local :rank
   [_ [data] {:keys [id]} :- m/Rank]
-  (->> data
-    (map-indexed (fn [i v]
-                   (assoc v 'index i)))
-    (map (update-field-ids id))))
+  (let [prepend (record/prepend 'index)]
+    (->> data
+      (map-indexed (fn [i v] (prepend v i)))
+      (map (update-field-ids id)))))
 
 (s/defmethod graph->local :sort
   [_ [data] {:keys [id key comp]} :- m/Sort]
   (->> data
     (sort-by key (pigpen-comparator comp))
-    (map #(dissoc % key))
+    (map (record/without key))
     (map (update-field-ids id))))
 
 ;; ********** Filter **********
@@ -350,10 +528,40 @@ sequence. This command is very useful for unit tests.
     (take n)
     (map (update-field-ids id))))
 
+(defn sampler
+  "Returns a stateful predicate that selects values with probability p. Instead
+of drawing a random number for each value, this draws the number of values to
+skip before the next one is selected from a geometric distribution. The
+predicate is still called for every value; a skipped value only costs a
+decrement. Takes an optional seed."
+  [p seed]
+  (cond
+    (<= p 0.0) (constantly false)
+    (<= 1.0 p) (constantly true)
+    :else
+    (let [^Random r (if seed (Random. (long seed)) (Random.))
+          log-q (Math/log1p (- p))
+          skip (fn []
+                 ;; 1 - nextDouble is in (0, 1], so the log is finite
+                 (-> (Math/log (- 1.0 (.nextDouble r)))
+                   (/ log-q)
+                   (Math/min (double Long/MAX_VALUE))
+                   (long)))
+          remaining (long-array [(skip)])]
+      (fn [_]
+        (let [n (aget remaining 0)]
+          (if (zero? n)
+            (do
+              (aset remaining 0 (long (skip)))
+              true)
+            (do
+              (aset remaining 0 (dec n))
+              false)))))))
+
 (s/defmethod graph->local :sample
-  [_ [data] {:keys [id p]} :- m/Sample]
+  [_ [data] {:keys [id p opts]} :- m/Sample]
   (->> data
-    (filter (fn [_] (< (rand) p)))
+    (filter (sampler p (:seed opts)))
     (map (update-field-ids id))))
 
 ;; ********** Join **********
@@ -361,36 +569,27 @@ sequence. This command is very useful for unit tests.
 (s/defmethod graph->local :reduce
   [_ [data] {:keys [fields arg]} :- m/Reduce]
   (when (seq data)
-    [{(first fields) (map arg data)}]))
+    [(record/from-values (record/schema fields) [(map arg data)])]))
 
 (s/defmethod graph->local :group
   [_ data {:keys [ancestors keys join-types fields]} :- m/Group]
-  (let [[group-field & data-fields] fields
-        join-types (zipmap keys join-types)]
+  (let [join-types (zipmap keys join-types)
+        group (record/grouper (record/schema fields))]
     (->>
       ;; map
       (zipv [d data
              id ancestors
              k keys]
-        (for [values d
-              :let [key (induce-sentinel-nil+ (values k) id)]
-              [f v] values]
-          {;; This changes a nil values into a relation specific nil value
-           :field f
-           :key key
-           :value v}))
+        (for [values d]
+          ;; This changes a nil values into a relation specific nil value
+          [(induce-sentinel-nil+ (values k) id) values]))
       ;; shuffle
       (apply concat)
-      (group-by :key)
+      (group-by first)
       ;; reduce
       (map (fn [[key key-group]]
-             (->> key-group
-               (group-by :field)
-               (map (fn [[field field-group]]
-                      [field (map :value field-group)]))
-               (into
-                 ;; Revert the fake nils we put in the key earlier
-                 {group-field (remove-sentinel-nil+ key)}))))
+             ;; Revert the fake nils we put in the key earlier
+             (group (remove-sentinel-nil+ key) (map second key-group))))
       ; remove rows that were required, but are not present (inner joins)
       (remove (fn [value]
                 (->> join-types
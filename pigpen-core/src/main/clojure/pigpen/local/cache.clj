@@ -0,0 +1,245 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.local.cache
+  "A materialized relation cache for local execution. The output of a command
+is written to a local directory as a series of nippy-framed blocks. Entries are
+keyed by a stable hash of the baked command and all of its ancestors, along with
+a fingerprint of any input files. Old entries are evicted by total size, least
+recently used first.
+
+Nothing in here will be used directly with normal PigPen usage.
+See pigpen.local/cache
+"
+  (:require [clojure.java.io :as io]
+            [clojure.string]
+            [clojure.walk :as walk]
+            [taoensso.nippy :refer [freeze thaw]]
+            [pigpen.extensions.io :refer [clean]])
+  (:import [java.io File DataInputStream DataOutputStream EOFException]
+           [java.security MessageDigest]))
+
+(set! *warn-on-reflection* true)
+
+(def default-opts
+  {:dir        (str (System/getProperty "java.io.tmpdir") "/pigpen-cache")
+   :max-bytes  (* 1024 1024 1024)
+   :block-size 1024
+   :auto       false})
+
+;; ********** Keys **********
+
+(defn ^:private subtree
+  "Returns the command and all of its ancestors, depth first"
+  [lookup command]
+  (->> command
+    (tree-seq :ancestors (fn [c] (map lookup (:ancestors c))))
+    (distinct)))
+
+(defn ^:private canonical-ids
+  "Command ids and field namespaces are gensyms and change from run to run. This
+maps each id in the subtree to a stable name based on its position."
+  [commands]
+  (->> commands
+    (map-indexed (fn [i {:keys [id]}] [(name id) (str "c" i)]))
+    (into {})))
+
+(defn ^:private canonicalize [commands]
+  (let [ids (canonical-ids commands)]
+    (walk/postwalk
+      (fn [x]
+        (cond
+          (not (symbol? x)) x
+          (ids (name x)) (symbol (ids (name x)))
+          (ids (namespace x)) (symbol (ids (namespace x)) (name x))
+          :else x))
+      (map #(dissoc % :description) commands))))
+
+(defn ^:private sha1 [^String s]
+  (let [digest (.digest (MessageDigest/getInstance "SHA-1") (.getBytes s "UTF-8"))]
+    (apply str (map #(format "%02x" %) digest))))
+
+(defn command-key
+  "Returns a stable key for command. The parameter `lookup` is a map of id to
+command for the baked graph. `fingerprint` is called on each load command and
+should return a value that changes when the underlying data changes."
+  [lookup fingerprint command]
+  (let [commands (subtree lookup command)
+        inputs (->> commands
+                 (filter (comp #{:load} :type))
+                 (mapv fingerprint))]
+    (binding [*print-length* nil
+              *print-level* nil]
+      (-> [(canonicalize commands) inputs]
+        (pr-str)
+        ;; Reader gensyms, such as the args of #(), are different every time
+        ;; the code is read
+        (clojure.string/replace #"__\d+(__auto__)?" "__")
+        (sha1)))))
+
+(defn file-fingerprint
+  "A fingerprint for a set of local files: the name, size, and last modified
+time of each."
+  [files]
+  (vec
+    (for [^String f (sort files)
+          :let [file (io/file f)]]
+      [f (.length file) (.lastModified file)])))
+
+;; ********** Entries **********
+
+(def ^:private data-file "data")
+
+(defn ^:private ^File entry-dir [{:keys [dir]} key]
+  (io/file dir key))
+
+(defn ^:private touch!
+  "Marks an entry as recently used. The last modified time of the data file is
+the last time the entry was written or read."
+  [^File file]
+  (.setLastModified file (System/currentTimeMillis)))
+
+(defn ^:private last-used [^File dir]
+  (.lastModified (io/file dir data-file)))
+
+(defn entry-location
+  "Returns the location of the cached data for key, or nil if it's not present.
+Marks the entry as recently used."
+  [opts key]
+  (let [file (io/file (entry-dir opts key) data-file)]
+    (when (.exists file)
+      (touch! file)
+      (.getAbsolutePath file))))
+
+(defn ^:private entry-size [^File dir]
+  (->> dir
+    (file-seq)
+    (filter (fn [^File f] (.isFile f)))
+    (map (fn [^File f] (.length f)))
+    (reduce +)))
+
+(defn evict!
+  "Deletes the least recently used entries until the cache is no larger than
+max-bytes. The entry for `keep`, if specified, is never deleted, even if it's
+larger than max-bytes on its own."
+  ([opts] (evict! opts nil))
+  ([{:keys [dir max-bytes]} keep]
+    (let [entries (->> (io/file dir)
+                    (.listFiles)
+                    (filter (fn [^File f]
+                              (and (.isDirectory f)
+                                   (not (.startsWith (.getName f) ".")))))
+                    (sort-by (fn [^File f] [(not= keep (.getName f))
+                                            (- (last-used f))])))]
+      (->> entries
+        (reductions (fn [[total _] f] [(+ total (entry-size f)) f]) [0 nil])
+        (next)
+        (drop-while (fn [[total _]] (<= total max-bytes)))
+        (map second)
+        (remove (fn [^File f] (= keep (.getName f))))
+        (map clean)
+        (dorun)))))
+
+;; ********** Write **********
+
+(defn ^:private write-block [^DataOutputStream out block]
+  (let [^bytes b (freeze block)]
+    (.writeInt out (alength b))
+    (.write out b)))
+
+(defn open-entry
+  "Starts writing a new cache entry for key. Values are written to a temporary
+location, which is moved into place by commit-entry!"
+  [{:keys [dir block-size]} key fields]
+  (let [tmp (io/file dir (str "." key "-" (java.util.UUID/randomUUID)))]
+    (.mkdirs tmp)
+    {:key key
+     :fields fields
+     :block-size block-size
+     :tmp tmp
+     :out (DataOutputStream. (io/output-stream (io/file tmp data-file)))
+     :buffer (atom [])}))
+
+(defn write-row!
+  "Adds a single row, a map of field to value, to the entry. Fields that are
+absent from the row are preserved as absent."
+  [{:keys [fields block-size out buffer]} row]
+  (let [values (mapv #(get row % ::absent) fields)
+        block (swap! buffer conj values)]
+    (when (<= block-size (count block))
+      (write-block out block)
+      (reset! buffer []))))
+
+(defn commit-entry!
+  "Flushes any buffered rows and atomically moves the entry into place."
+  [opts {:keys [key ^File tmp ^DataOutputStream out buffer]}]
+  (when (seq @buffer)
+    (write-block out @buffer))
+  (.close out)
+  (let [dir (entry-dir opts key)]
+    (clean dir)
+    (when-not (.renameTo tmp dir)
+      (clean tmp)))
+  (evict! opts key))
+
+(defn abort-entry!
+  "Discards a partially written entry."
+  [{:keys [^File tmp ^DataOutputStream out]}]
+  (.close out)
+  (clean tmp))
+
+(defn write-entry!
+  "Writes all of data to a new entry for key."
+  [opts key fields data]
+  (let [entry (open-entry opts key fields)]
+    (try
+      (doseq [row data]
+        (write-row! entry row))
+      (commit-entry! opts entry)
+      (catch Throwable z
+        (abort-entry! entry)
+        (throw z)))))
+
+;; ********** Read **********
+
+(defn open-reader
+  "Opens a cached data file for reading. Marks the entry as recently used."
+  ^DataInputStream [location]
+  (touch! (io/file location))
+  (DataInputStream. (io/input-stream location)))
+
+(defn ^:private read-block [^DataInputStream in]
+  (let [n (try
+            (.readInt in)
+            (catch EOFException _ nil))]
+    (when n
+      (let [b (byte-array n)]
+        (.readFully in b)
+        (thaw b)))))
+
+(defn read-rows
+  "Returns a lazy seq of rows from a cached data file. Each row is a map of the
+specified fields to their values."
+  [^DataInputStream in fields]
+  (->> (repeatedly #(read-block in))
+    (take-while identity)
+    (mapcat identity)
+    (map (fn [values]
+           (->> (map vector fields values)
+             (remove (comp #{::absent} second))
+             (into {}))))))
@@ -0,0 +1,332 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.local.compress
+  "Block compressed files for local execution. Output is split into blocks of
+block-size bytes. Each block is compressed on its own, in parallel on a shared
+pool, and written in order. The format of each block is a complete stream of
+the codec, so the file can be read by any tool that understands concatenated
+streams. When a file was written in blocks, the blocks are read and
+decompressed in parallel as well.
+
+Codecs are chosen by the extension of the location. gz is always available.
+bz2 requires commons-compress and snappy requires snappy-java to be on the
+classpath. Using either without its library is an error.
+
+Nothing in here will be used directly with normal PigPen usage.
+See pigpen.local/load-reader and pigpen.local/store-writer
+"
+  (:import [java.io InputStream OutputStream BufferedInputStream
+            ByteArrayOutputStream ByteArrayInputStream EOFException]
+           [java.util ArrayDeque]
+           [java.util.concurrent Executors ExecutorService Future Callable
+            ThreadFactory]
+           [java.util.zip Deflater DeflaterOutputStream CRC32 GZIPInputStream]))
+
+(set! *warn-on-reflection* true)
+
+(def block-size (* 1024 1024))
+
+(def ^:private threads (.availableProcessors (Runtime/getRuntime)))
+
+;; The number of blocks that can be in flight at once
+(def ^:private max-pending (* 2 threads))
+
+(def ^:private ^ExecutorService pool
+  (Executors/newFixedThreadPool
+    threads
+    (reify ThreadFactory
+      (newThread [_ r]
+        (doto (Thread. r "pigpen-compress")
+          (.setDaemon true))))))
+
+(defn ^:private submit ^Future [f]
+  (.submit pool ^Callable f))
+
+(defprotocol BlockCodec
+  (compress-block [codec data n]
+    "Compresses the first n bytes of data. Returns a byte array that is a
+complete stream on its own.")
+  (blocks [codec in]
+    "Returns a lazy seq of the compressed blocks in `in`, a BufferedInputStream.
+Returns nil if the stream wasn't written in blocks; any bytes read must be
+reset first.")
+  (decompress-block [codec block]
+    "Decompresses a single block. Returns a byte array.")
+  (decoder [codec in]
+    "Returns an InputStream that decompresses all of `in`, in sequence"))
+
+(defmulti codec
+  "Returns the codec for a file extension, or nil if there isn't one"
+  identity)
+
+;; Extensions that have a codec, but only with another library. The codec
+;; registers itself when it's loaded, so these are only used when it couldn't
+;; be.
+(def ^:private dependencies
+  {"bz2" "org.apache.commons:commons-compress"
+   "snappy" "org.xerial.snappy:snappy-java"})
+
+(defmethod codec :default [extension]
+  (when-let [dependency (dependencies extension)]
+    (throw (ex-info (str "The ." extension " codec requires " dependency
+                         " to be on the classpath")
+                    {:extension extension
+                     :dependency dependency}))))
+
+(defn location-codec
+  "Returns the codec for a location, based on its extension"
+  [^String location]
+  (when-let [[_ extension] (re-find #"\.([a-z0-9]+)$" location)]
+    (codec extension)))
+
+(defn read-fully
+  "Reads up to n bytes from in into b at off. Returns the number of bytes read,
+which is less than n only at the end of the stream."
+  [^InputStream in ^bytes b off n]
+  (loop [read 0]
+    (if (< read n)
+      (let [r (.read in b (+ off read) (- n read))]
+        (if (neg? r)
+          read
+          (recur (+ read r))))
+      read)))
+
+;; ********** Write **********
+
+(defn output-stream
+  "Returns an OutputStream that compresses into out in blocks. Blocks are
+compressed in parallel and written in order. At most max-pending blocks are
+held in memory."
+  ^java.io.OutputStream [codec ^OutputStream out]
+  (let [buffer (ByteArrayOutputStream. (+ block-size 8192))
+        pending (ArrayDeque.)
+        blocks-written (long-array 1)
+        drain! (fn [all?]
+                 (while (and (not (.isEmpty pending))
+                             (or all?
+                                 (<= max-pending (.size pending))
+                                 (.isDone ^Future (.peek pending))))
+                   (.write out ^bytes (.get ^Future (.poll pending)))))
+        flush-block! (fn []
+                       (let [data (.toByteArray buffer)]
+                         (.reset buffer)
+                         (.add pending (submit #(compress-block codec data (alength data))))
+                         (aset blocks-written 0 (inc (aget blocks-written 0)))
+                         (drain! false)))]
+    (proxy [OutputStream] []
+      (write
+        ([b]
+          (if (integer? b)
+            (do
+              (.write buffer (int b))
+              (when (<= block-size (.size buffer))
+                (flush-block!)))
+            (.write ^OutputStream this ^bytes b 0 (alength ^bytes b))))
+        ([b off len]
+          ;; Large writes are split so that no block is larger than block-size
+          (loop [off (long off), len (long len)]
+            (let [n (min len (- (long block-size) (.size buffer)))]
+              (.write buffer ^bytes b (int off) (int n))
+              (when (<= block-size (.size buffer))
+                (flush-block!))
+              (when (< n len)
+                (recur (+ off n) (- len n)))))))
+      (flush []
+        (.flush out))
+      (close []
+        (try
+          ;; An empty file is still written as a single empty block
+          (when (or (pos? (.size buffer))
+                    (zero? (aget blocks-written 0)))
+            (flush-block!))
+          (drain! true)
+          (finally
+            (.close out)))))))
+
+;; ********** Read **********
+
+(defn pmap-blocks
+  "Like pmap, but uses the compression pool and reads at most max-pending
+blocks ahead. The results are returned in order."
+  [f blocks]
+  (let [futures (map (fn [b] (submit #(f b))) blocks)
+        step (fn step [[x & xs :as vs] fs]
+               (lazy-seq
+                 (if-let [s (seq fs)]
+                   (cons (.get ^Future x) (step xs (rest s)))
+                   (map #(.get ^Future %) vs))))]
+    (step futures (drop max-pending futures))))
+
+(defn ^:private bytes-input-stream
+  "Returns an InputStream over a seq of byte arrays"
+  ^InputStream [blocks on-close]
+  (let [remaining (atom blocks)
+        current (atom nil)
+        pos (long-array 1)]
+    (proxy [InputStream] []
+      (read
+        ([]
+          (let [b (byte-array 1)]
+            (if (neg? (.read ^InputStream this b 0 1))
+              -1
+              (bit-and (aget b 0) 0xff))))
+        ([b]
+          (.read ^InputStream this ^bytes b 0 (alength ^bytes b)))
+        ([b off len]
+          (loop []
+            (let [^bytes block @current
+                  p (aget pos 0)]
+              (cond
+                (zero? len) 0
+                (and block (< p (alength block)))
+                (let [n (min (long len) (- (alength block) p))]
+                  (System/arraycopy block (int p) b (int off) (int n))
+                  (aset pos 0 (+ p n))
+                  (int n))
+                (seq @remaining)
+                (do
+                  (reset! current (first @remaining))
+                  (swap! remaining rest)
+                  (aset pos 0 0)
+                  (recur))
+                :else -1)))))
+      (close []
+        (reset! remaining nil)
+        (on-close)))))
+
+(defn input-stream
+  "Returns an InputStream that decompresses in. If in was written in blocks,
+they're decompressed in parallel."
+  ^java.io.InputStream [codec ^InputStream in]
+  (let [in (BufferedInputStream. in)]
+    (if-let [bs (blocks codec in)]
+      (bytes-input-stream (pmap-blocks (partial decompress-block codec) bs)
+                          #(.close in))
+      (decoder codec in))))
+
+;; ********** gzip **********
+
+;; Each block is a gzip member. The header carries an extra field, PP, with the
+;; size of the whole member so that a reader can find the next member without
+;; inflating this one. The result is a valid multi-member gzip file.
+
+(def ^:private gzip-header-size 20)
+
+(defn ^:private put-int-le [^bytes b off v]
+  (dotimes [i 4]
+    (aset b (+ off i) (unchecked-byte (bit-shift-right (long v) (* 8 i))))))
+
+(defn ^:private get-int-le ^long [^bytes b off]
+  (reduce
+    (fn [acc i]
+      (bit-or acc (bit-shift-left (bit-and (long (aget b (+ off i))) 0xff) (* 8 i))))
+    0
+    (range 4)))
+
+(defn ^:private gzip-member-size
+  "Returns the member size from a gzip header written by this codec, or nil"
+  [^bytes header]
+  (when (and (= (aget header 0) (unchecked-byte 0x1f))
+             (= (aget header 1) (unchecked-byte 0x8b))
+             (= (aget header 2) 8)
+             (= (aget header 3) 4) ; FEXTRA
+             (= (aget header 10) 8)
+             (= (aget header 11) 0)
+             (= (aget header 12) (byte (int \P)))
+             (= (aget header 13) (byte (int \P)))
+             (= (aget header 14) 4)
+             (= (aget header 15) 0))
+    (get-int-le header 16)))
+
+(defn ^:private read-gzip-member
+  "Reads the next member. Returns ::eof at the end of the stream and nil if the
+member wasn't written by this codec."
+  [^BufferedInputStream in]
+  (.mark in gzip-header-size)
+  (let [header (byte-array gzip-header-size)
+        n (read-fully in header 0 gzip-header-size)
+        size (when (= n gzip-header-size) (gzip-member-size header))]
+    (cond
+      (zero? n) ::eof
+      (nil? size) (do (.reset in) nil)
+      :else
+      (let [member (byte-array size)]
+        (System/arraycopy header 0 member 0 gzip-header-size)
+        (when (< (read-fully in member gzip-header-size (- size gzip-header-size))
+                 (- size gzip-header-size))
+          (throw (EOFException. "Truncated gzip block")))
+        member))))
+
+(def gzip
+  (reify BlockCodec
+    (compress-block [_ data n]
+      (let [deflater (Deflater. Deflater/DEFAULT_COMPRESSION true)
+            body (ByteArrayOutputStream.)
+            crc (CRC32.)]
+        (try
+          (with-open [o (DeflaterOutputStream. body deflater)]
+            (.write o ^bytes data 0 (int n)))
+          (finally
+            (.end deflater)))
+        (.update crc ^bytes data 0 (int n))
+        (let [body (.toByteArray body)
+              size (+ gzip-header-size (alength body) 8)
+              member (byte-array size)]
+          (doseq [[i b] (map-indexed vector [0x1f 0x8b 8 4 0 0 0 0 0 0xff 8 0 (int \P) (int \P) 4 0])]
+            (aset member (int i) (unchecked-byte b)))
+          (put-int-le member 16 size)
+          (System/arraycopy body 0 member gzip-header-size (alength body))
+          (put-int-le member (- size 8) (.getValue crc))
+          (put-int-le member (- size 4) n)
+          member)))
+    (blocks [_ in]
+      (let [first-member (read-gzip-member in)
+            step (fn step []
+                   (lazy-seq
+                     (let [member (read-gzip-member in)]
+                       (cond
+                         (= ::eof member) nil
+                         (nil? member) (throw (ex-info "Unexpected gzip member" {}))
+                         :else (cons member (step))))))]
+        (cond
+          (nil? first-member) nil
+          (= ::eof first-member) ()
+          :else (cons first-member (step)))))
+    (decompress-block [_ block]
+      (let [^bytes block block
+            ;; ISIZE is the last 4 bytes of the member
+            data (byte-array (get-int-le block (- (alength block) 4)))]
+        (with-open [i (GZIPInputStream. (ByteArrayInputStream. block))]
+          (read-fully i data 0 (alength data)))
+        data))
+    (decoder [_ in]
+      (GZIPInputStream. in))))
+
+(defmethod codec "gz" [_] gzip)
+
+;; Codecs that need another library are loaded if it's available
+(def ^:private known-impls
+  ['pigpen.local.compress.bzip2
+   'pigpen.local.compress.snappy])
+
+(doseq [ns known-impls]
+  (try
+    (require ns)
+    (catch Throwable e
+      #_(prn e))))
@@ -0,0 +1,126 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.local.compress.bzip2
+  "The bz2 block codec. Requires commons-compress.
+
+Each block is a complete bzip2 stream. bzip2 streams have no length field, so
+blocks are found by scanning for the header that starts the next stream. A file
+that doesn't contain a second stream within the first few blocks is read
+sequentially.
+"
+  (:require [pigpen.local.compress :as compress])
+  (:import [java.io InputStream BufferedInputStream ByteArrayOutputStream
+            ByteArrayInputStream]
+           [org.apache.commons.compress.compressors.bzip2
+            BZip2CompressorInputStream BZip2CompressorOutputStream]))
+
+(set! *warn-on-reflection* true)
+
+;; A stream header, BZh[1-9], followed by the magic number of its first block
+(def ^:private header-size 10)
+
+(def ^:private ^"[B" header
+  (byte-array (map unchecked-byte [0x42 0x5a 0x68 0 0x31 0x41 0x59 0x26 0x53 0x59])))
+
+;; How far to look for the start of a second stream before giving up
+(def ^:private scan-limit (* 4 compress/block-size))
+
+(defn ^:private header-at?
+  "Returns true if a stream header ends at position end of b"
+  [^bytes b end]
+  (let [start (- (long end) header-size)]
+    (and (<= 0 start)
+         (loop [i 0]
+           (cond
+             (= i header-size) true
+             (= i 3) (let [level (aget b (+ start i))]
+                       (and (<= (int \1) level (int \9))
+                            (recur (inc i))))
+             (= (aget b (+ start i)) (aget header i)) (recur (inc i))
+             :else false)))))
+
+(defn ^:private stream-reader
+  "Returns a fn that reads the next stream from in each time it's called. It
+returns the stream as a byte array, nil at the end of in, ::unsplittable if the
+first stream isn't followed by another within limit bytes, or ::invalid if in
+doesn't start with a stream header."
+  [^InputStream in limit]
+  (let [state (atom {:next (byte-array header-size)
+                     :first? true})]
+    (fn []
+      (let [{:keys [^bytes next first?]} @state]
+        (when next
+          (let [start (if first?
+                        (compress/read-fully in next 0 header-size)
+                        header-size)]
+            (cond
+              (zero? start) (do (swap! state assoc :next nil) nil)
+              (not (header-at? next header-size)) ::invalid
+              :else
+              (loop [^bytes buf (java.util.Arrays/copyOf next (int (* 2 header-size)))
+                     n header-size]
+                (let [b (.read in)]
+                  (cond
+                    (neg? b)
+                    (do
+                      (reset! state {:next nil, :first? false})
+                      (java.util.Arrays/copyOf buf (int n)))
+
+                    (and first? limit (< (long limit) n))
+                    ::unsplittable
+
+                    :else
+                    (let [^bytes buf (if (= n (alength buf))
+                                       (java.util.Arrays/copyOf buf (int (* 2 n)))
+                                       buf)
+                          n (inc n)]
+                      (aset buf (dec n) (unchecked-byte b))
+                      (if (header-at? buf n)
+                        (do
+                          (reset! state {:next (java.util.Arrays/copyOfRange buf (int (- n header-size)) (int n))
+                                         :first? false})
+                          (java.util.Arrays/copyOf buf (int (- n header-size))))
+                        (recur buf n)))))))))))))
+
+(def bzip2
+  (reify compress/BlockCodec
+    (compress-block [_ data n]
+      (let [out (ByteArrayOutputStream.)]
+        (with-open [o (BZip2CompressorOutputStream. out)]
+          (.write o ^bytes data 0 (int n)))
+        (.toByteArray out)))
+    (blocks [_ in]
+      (let [^BufferedInputStream in in
+            _ (.mark in (+ scan-limit (* 2 header-size)))
+            read-stream (stream-reader in scan-limit)
+            first-stream (read-stream)]
+        (cond
+          (keyword? first-stream) (do (.reset in) nil)
+          (nil? first-stream) ()
+          :else (cons first-stream
+                      (take-while identity (repeatedly read-stream))))))
+    (decompress-block [_ block]
+      (let [out (ByteArrayOutputStream. (* 2 (alength ^bytes block)))]
+        (with-open [i (BZip2CompressorInputStream. (ByteArrayInputStream. block))]
+          (clojure.java.io/copy i out))
+        (.toByteArray out)))
+    (decoder [_ in]
+      (BZip2CompressorInputStream. in true))))
+
+(defmethod compress/codec "bz2" [_] bzip2)
@@ -0,0 +1,83 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.local.compress.snappy
+  "The snappy block codec. Requires snappy-java.
+
+Files use the snappy-java stream format: a header followed by length-prefixed
+chunks. Each block is written as its own stream containing a single chunk.
+Chunks are compressed independently, so any file in this format can be read in
+parallel, one chunk at a time.
+"
+  (:require [pigpen.local.compress :as compress])
+  (:import [java.io BufferedInputStream ByteArrayOutputStream DataInputStream
+            EOFException]
+           [java.util Arrays]
+           [org.xerial.snappy Snappy SnappyInputStream SnappyOutputStream]))
+
+(set! *warn-on-reflection* true)
+
+;; The magic header of a stream, followed by two ints for the version
+(def ^:private ^"[B" magic
+  (byte-array (map unchecked-byte [-126 (int \S) (int \N) (int \A) (int \P) (int \P) (int \Y) 0])))
+
+(def ^:private header-size 16)
+
+(defn ^:private read-header?
+  "Reads a stream header if there is one next in. Returns false, with in reset,
+if there isn't."
+  [^BufferedInputStream in]
+  (.mark in header-size)
+  (let [b (byte-array header-size)]
+    (if (and (= header-size (compress/read-fully in b 0 header-size))
+             (Arrays/equals magic (Arrays/copyOf b (alength magic))))
+      true
+      (do (.reset in) false))))
+
+(defn ^:private read-chunk
+  "Reads the next compressed chunk, skipping the headers of any concatenated
+streams. Returns nil at the end of in."
+  [^BufferedInputStream in]
+  (while (read-header? in))
+  (let [data (DataInputStream. in)
+        n (try
+            (.readInt data)
+            (catch EOFException _ nil))]
+    (when n
+      (let [chunk (byte-array n)]
+        (.readFully data chunk)
+        chunk))))
+
+(def snappy
+  (reify compress/BlockCodec
+    (compress-block [_ data n]
+      (let [out (ByteArrayOutputStream.)]
+        ;; One chunk per block
+        (with-open [o (SnappyOutputStream. out (max 1 (int n)))]
+          (.write o ^bytes data 0 (int n)))
+        (.toByteArray out)))
+    (blocks [_ in]
+      (if (read-header? in)
+        (take-while identity (repeatedly #(read-chunk in)))
+        nil))
+    (decompress-block [_ block]
+      (Snappy/uncompress ^bytes block))
+    (decoder [_ in]
+      (SnappyInputStream. in))))
+
+(defmethod compress/codec "snappy" [_] snappy)
@@ -0,0 +1,357 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.local.record
+  "The positional row layout used by local and rx execution. A row is an array
+of values paired with a schema, which maps each field to a position in the
+array. Operations that only change field names, such as filter or distinct,
+swap the schema and share the array. Derived schemas are computed once and
+cached on the schema they came from. The fns that each command uses also
+remember the last schema they saw, so rows from one command resolve their
+schema once and then only compare it by identity.
+
+Rows implement the clojure map interfaces, so loaders, storers, and the cache
+can continue to treat them as maps of field to value.
+
+Nothing in here will be used directly with normal PigPen usage."
+  (:refer-clojure :exclude [concat])
+  (:require [pigpen.raw :as raw])
+  (:import [clojure.lang IPersistentMap ILookup Associative IPersistentCollection
+            IHashEq IFn MapEntry MapEquivalence SeqIterator Util AFn RT]
+           [java.util Map Arrays]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicReference]))
+
+(set! *warn-on-reflection* true)
+
+;; Marks a field that is part of the schema, but not present in this row. This
+;; happens for optional relations in a join.
+(def ^:private absent ::absent)
+
+;; ********** Schema **********
+
+(deftype Schema [fields index ^ints positions ^long width ^ConcurrentHashMap derived]
+  ;; fields is the vector of visible fields, index is field -> position,
+  ;; positions is the position of each field, and width is the size of the
+  ;; arrays it describes. Schemas are compared by identity.
+  Object
+  (toString [this]
+    (str "#schema " fields)))
+
+(defn ^:private schema* [fields positions width]
+  (let [fields (vec fields)]
+    (Schema. fields
+             (zipmap fields positions)
+             (int-array positions)
+             width
+             (ConcurrentHashMap.))))
+
+(defn schema
+  "Creates a schema for arrays that hold fields in order"
+  [fields]
+  (schema* fields (range (count fields)) (count fields)))
+
+(defn ^:private derive-schema
+  "Returns a schema derived from s, computing it the first time it's requested.
+`k` identifies the derivation."
+  [^Schema s k f]
+  (let [^ConcurrentHashMap derived (.derived s)]
+    (or (.get derived k)
+        (let [s' (f)]
+          (or (.putIfAbsent derived k s') s')))))
+
+;; ********** Resolve **********
+
+(defn ^:private resolver
+  "Returns a fn of a schema that returns (f schema). The last schema and its
+result are kept, so a run of rows that share a schema only calls f once."
+  [f]
+  (let [last (AtomicReference.)]
+    (fn [s]
+      (let [^objects e (.get last)]
+        (if (and e (identical? s (aget e 0)))
+          (aget e 1)
+          (let [r (f s)]
+            (.set last (object-array [s r]))
+            r))))))
+
+;; ********** Record **********
+
+(declare map-equiv)
+
+(deftype Record [^Schema schema ^objects values]
+
+  ILookup
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k not-found]
+    (let [i ((.index schema) k)]
+      (if (nil? i)
+        not-found
+        (let [v (aget values (int i))]
+          (if (identical? v absent)
+            not-found
+            v)))))
+
+  Associative
+  (containsKey [this k]
+    (not (identical? (.valAt this k absent) absent)))
+  (entryAt [this k]
+    (let [v (.valAt this k absent)]
+      (when-not (identical? v absent)
+        (MapEntry. k v))))
+  (assoc [this k v]
+    (assoc (into {} (.seq this)) k v))
+
+  IPersistentMap
+  (assocEx [this k v]
+    (.assocEx ^IPersistentMap (into {} (.seq this)) k v))
+  (without [this k]
+    (dissoc (into {} (.seq this)) k))
+
+  IPersistentCollection
+  (count [this]
+    (let [^ints ps (.positions schema)]
+      (loop [i 0, n 0]
+        (if (< i (alength ps))
+          (recur (inc i)
+                 (if (identical? (aget values (aget ps i)) absent) n (inc n)))
+          n))))
+  (cons [this o]
+    (conj (into {} (.seq this)) o))
+  (empty [this]
+    {})
+  (equiv [this o]
+    (if (and (instance? Record o)
+             (identical? schema (.schema ^Record o)))
+      (let [^objects values' (.-values ^Record o)
+            ^ints ps (.positions schema)]
+        (loop [i 0]
+          (or (= i (alength ps))
+              (let [p (aget ps i)]
+                (and (Util/equiv (aget values p) (aget values' p))
+                     (recur (inc i)))))))
+      (map-equiv this o)))
+  (seq [this]
+    (let [^ints ps (.positions schema)]
+      (seq
+        (for [[i f] (map-indexed vector (.fields schema))
+              :let [v (aget values (aget ps i))]
+              :when (not (identical? v absent))]
+          (MapEntry. f v)))))
+
+  MapEquivalence
+
+  IHashEq
+  (hasheq [this]
+    (hash-unordered-coll this))
+
+  IFn
+  (invoke [this k]
+    (.valAt this k nil))
+  (invoke [this k not-found]
+    (.valAt this k not-found))
+  (applyTo [this args]
+    (AFn/applyToHelper this args))
+
+  Iterable
+  (iterator [this]
+    (SeqIterator. (.seq this)))
+
+  Map
+  (size [this] (.count this))
+  (isEmpty [this] (zero? (.count this)))
+  (containsValue [this v] (boolean (some #(Util/equiv v (val %)) (.seq this))))
+  (get [this k] (.valAt this k nil))
+  (keySet [this] (set (keys (.seq this))))
+  (values [this] (or (vals (.seq this)) []))
+  (entrySet [this] (set (.seq this)))
+  (put [this k v] (throw (UnsupportedOperationException.)))
+  (remove [this k] (throw (UnsupportedOperationException.)))
+  (putAll [this m] (throw (UnsupportedOperationException.)))
+  (clear [this] (throw (UnsupportedOperationException.)))
+
+  Object
+  (equals [this o]
+    (.equiv this o))
+  (hashCode [this]
+    (reduce + (map (fn [[k v]] (bit-xor (Util/hash k) (Util/hash v))) (.seq this))))
+  (toString [this]
+    (RT/printString this)))
+
+(defn ^:private map-equiv [^Record r o]
+  (and (instance? Map o)
+       (or (not (instance? IPersistentMap o)) (instance? MapEquivalence o))
+       (= (.count r) (count o))
+       (every? (fn [[k v]]
+                 (and (.containsKey ^Map o k)
+                      (Util/equiv v (.get ^Map o k))))
+               (.seq r))))
+
+(defn from-values
+  "Creates a record from a sequence of values in schema order"
+  [^Schema schema values]
+  (Record. schema (object-array values)))
+
+(defn from-map
+  "Creates a record from a map of field to value. Fields in the schema that are
+missing from the map are absent in the record. If the map has fields that the
+schema doesn't, the record uses a schema of the map's own fields instead."
+  [^Schema schema m]
+  (if (instance? Record m)
+    m
+    (let [index (.index schema)]
+      (if (every? #(contains? index %) (keys m))
+        (let [values (object-array (.width schema))]
+          (java.util.Arrays/fill values absent)
+          (doseq [[k v] m]
+            (aset values (int (index k)) v))
+          (Record. schema values))
+        (let [fields (vec (keys m))]
+          (from-values (derive-schema schema fields #(pigpen.local.record/schema fields))
+                       (vals m)))))))
+
+(defn rename
+  "Returns a fn that moves a record's fields into the namespace `id`. A field
+named x becomes id/x. The array is shared with the original record."
+  [id]
+  (let [resolve (resolver
+                  (fn [^Schema s]
+                    (derive-schema s id
+                      #(schema* (map (partial raw/update-ns id) (.fields s))
+                                (.positions s)
+                                (.width s)))))]
+    (fn [^Record r]
+      (Record. (resolve (.schema r)) (.-values r)))))
+
+(defn without
+  "Returns a fn that removes the field `f` from a record. The array is shared
+with the original record."
+  [f]
+  (let [resolve (resolver
+                  (fn [^Schema s]
+                    (derive-schema s [::without f]
+                      #(let [keep (remove (comp #{f} first)
+                                          (map vector (.fields s) (.positions s)))]
+                         (schema* (map first keep) (map second keep) (.width s))))))]
+    (fn [^Record r]
+      (Record. (resolve (.schema r)) (.-values r)))))
+
+(defn prepend
+  "Returns a fn of a record and a value that adds the value as the field `f`,
+before all of the others"
+  [f]
+  (let [resolve (resolver
+                  (fn [^Schema s]
+                    (derive-schema s [::prepend f]
+                      #(schema (cons f (.fields s))))))]
+    (fn [^Record r v]
+      (let [^Schema s (.schema r)
+            ^ints ps (.positions s)
+            ^objects values (.-values r)
+            values' (object-array (inc (alength ps)))]
+        (aset values' 0 v)
+        (dotimes [i (alength ps)]
+          (aset values' (inc i) (aget values (aget ps i))))
+        (Record. (resolve s) values')))))
+
+(defn concat
+  "Returns a record with the fields of both r1 and r2. The fields of the two
+records should be distinct."
+  [^Record r1 ^Record r2]
+  (let [^Schema s1 (.schema r1)
+        ^Schema s2 (.schema r2)
+        ^ints ps1 (.positions s1)
+        ^ints ps2 (.positions s2)
+        n1 (alength ps1)
+        n2 (alength ps2)
+        s' (derive-schema s1 s2
+             #(schema (clojure.core/concat (.fields s1) (.fields s2))))
+        ^objects values1 (.-values r1)
+        ^objects values2 (.-values r2)
+        values' (object-array (+ n1 n2))]
+    (dotimes [i n1]
+      (aset values' i (aget values1 (aget ps1 i))))
+    (dotimes [i n2]
+      (aset values' (+ n1 i) (aget values2 (aget ps2 i))))
+    (Record. s' values')))
+
+(defn combine
+  "Combines the fields of two rows. Records are concatenated; anything else is
+merged as a map."
+  [value other]
+  (cond
+    (empty? other) value
+    (and (instance? Record value) (instance? Record other)) (concat value other)
+    :else (merge other value)))
+
+(defn selector
+  "Returns a fn that takes a record and returns the values of `args`, in order.
+Each arg is either a field or a string literal. Field positions are resolved
+once per schema."
+  [args]
+  (let [resolve (resolver
+                  (fn [^Schema s]
+                    (let [index (.index s)]
+                      (mapv (fn [a] (if (string? a) a (index a -1))) args))))]
+    (fn [^Record r]
+      (let [^objects values (.-values r)]
+        (mapv (fn [p]
+                (cond
+                  (string? p) p
+                  (neg? (long p)) nil
+                  :else (let [v (aget values (int p))]
+                          (when-not (identical? v absent) v))))
+              (resolve (.schema r)))))))
+
+(defn grouper
+  "Returns a fn of a key and the rows that share it, which returns a record of
+`schema`. The key is the first field, and each other field is the values of
+that field from the rows, in order. Fields that none of the rows have are
+absent. Fields that aren't in `schema` are dropped."
+  [^Schema schema]
+  (let [width (.width schema)
+        index (.index schema)
+        resolve (resolver
+                  (fn [^Schema s]
+                    (int-array (map #(index % -1) (.fields s)))))]
+    (fn [key rows]
+      (let [values (object-array width)]
+        (Arrays/fill values absent)
+        (aset values 0 key)
+        (doseq [^Record r rows]
+          (let [^Schema s (.schema r)
+                ^ints ps (.positions s)
+                ^ints to (resolve s)
+                ^objects vs (.-values r)]
+            (dotimes [i (alength ps)]
+              (let [v (aget vs (aget ps i))
+                    t (aget to i)]
+                (when-not (or (identical? v absent) (neg? t))
+                  (let [acc (aget values t)]
+                    (aset values t (conj! (if (identical? acc absent)
+                                            (transient [])
+                                            acc)
+                                          v))))))))
+        (loop [i 1]
+          (when (< i width)
+            (let [acc (aget values i)]
+              (when-not (identical? acc absent)
+                (aset values i (seq (persistent! acc)))))
+            (recur (inc i))))
+        (Record. schema values)))))
@@ -0,0 +1,200 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.parallel
+  "Estimates the number of reducers to use for each shuffle in a script. The
+size of each input is taken from location-bytes, which the pig and cascading
+ovens answer with the Hadoop FileSystem, and which otherwise uses
+pigpen.local/load-size. The size of each command is the size of its ancestors,
+scaled by the selectivity of the command. Each group, join, and distinct, and
+each sort in pig, is then given one reducer per :bytes-per-reducer of input,
+within :min and :max. Commands whose input size is unknown or zero are left
+alone.
+
+A value for :parallel that is specified on a command is never changed.
+
+Nothing in here will be used directly with normal PigPen usage. Enable it with
+the :estimate-parallel option when generating a script or flow.
+"
+  (:require [pigpen.local :as local]
+            [pigpen.local.cache :as cache]))
+
+(set! *warn-on-reflection* true)
+
+(def default-opts
+  {:bytes-per-reducer (* 1024 1024 1024)
+   :min 1
+   :max 999
+   ;; The fraction of its input that each type of command produces. Samples
+   ;; use their own p.
+   :selectivity {:filter 0.5
+                 :take 0
+                 :distinct 0.5}
+   ;; A map of command key to the number of bytes it produced in a prior run
+   :stats {}})
+
+;; ********** Keys **********
+
+;; Options that tune how a command runs, but not what it produces. These are
+;; left out of keys so that setting them, or running on another platform,
+;; doesn't change the key.
+(def ^:private tuning-opts
+  [:parallel :selectivity :pig-options :fold-cache :cache-key])
+
+(defn command-keys
+  "Returns a map of command id to a key that stays the same from run to run of
+the same script. Use these to key the :stats from a prior run. The commands
+should be the ones that estimate-parallel sees; see bake-keys."
+  [commands]
+  (let [commands (map (fn [c] (update-in c [:opts] #(apply dissoc % tuning-opts)))
+                      commands)
+        lookup (->> commands
+                 (map (juxt :id identity))
+                 (into {}))]
+    (->> commands
+      (map (fn [{:keys [id] :as c}]
+             [id (cache/command-key lookup :location c)]))
+      (into {}))))
+
+(defn bake-keys
+  "Returns the keys that estimate-parallel uses for :stats, as a map of command
+id to key. `bake` is the bake fn of a platform, such as pigpen.pig.oven/bake,
+and is called with opts and query, which should not be baked yet. The ids match
+the ids of the baked query.
+
+Each platform rewrites some commands, such as rank, before estimate-parallel
+runs, so stats should be keyed with the bake fn of the platform they're used
+with.
+
+  Example:
+
+    (parallel/bake-keys pigpen.pig.oven/bake {} query)
+"
+  [bake opts query]
+  (let [keys (atom nil)]
+    (bake (assoc opts :estimate-parallel {::keys keys}) query)
+    @keys))
+
+;; ********** Estimate **********
+
+(defmulti location-bytes
+  "Returns the total size in bytes of the data at location, or nil if it can't
+be determined. Dispatches on the platform. The default uses
+pigpen.local/load-size."
+  (fn [platform location] platform))
+
+(defmethod location-bytes :default [_ location]
+  (local/load-size location))
+
+(defn ^:private input-bytes
+  "The size of a load. Zero is treated as unknown, as an empty location usually
+means the data is somewhere we can't see."
+  [platform location]
+  (let [size (try
+               (location-bytes platform location)
+               (catch Exception _ nil))]
+    (when (and size (pos? size))
+      size)))
+
+(defn ^:private selectivity [opts {:keys [type p] :as command}]
+  (or (get-in command [:opts :selectivity])
+      (get-in opts [:selectivity type])
+      (when (= type :sample) p)
+      1))
+
+(defn estimate-bytes
+  "Returns a map of command id to the estimated number of bytes that each
+command produces. Commands with an unknown size are nil."
+  [{:keys [stats platform] :as opts} commands]
+  (let [keys (when (seq stats) (command-keys commands))]
+    (reduce
+      (fn [sizes {:keys [id type ancestors location] :as command}]
+        (assoc sizes id
+               (or (get stats (get keys id))
+                   (cond
+                     (= type :load) (input-bytes platform location)
+                     (= type :return) 0
+                     (empty? ancestors) nil
+                     :else (let [in (map sizes ancestors)]
+                             (when (every? number? in)
+                               (* (reduce + in) (selectivity opts command))))))))
+      {}
+      commands)))
+
+(defn reducers
+  "Returns the number of reducers to use for `bytes` of input"
+  [{:keys [bytes-per-reducer min max]} bytes]
+  (-> (/ (double bytes) bytes-per-reducer)
+    (Math/ceil)
+    (long)
+    (clojure.core/max min)
+    (clojure.core/min max)))
+
+(defn ^:private shuffle?
+  "Cascading sorts everything in a single reducer, so it's not a shuffle there"
+  [platform {:keys [type opts]}]
+  (and (#{:group :join :distinct :sort} type)
+       (not (and (= type :sort) (= platform :cascading)))
+       (not= :replicated (:strategy opts))))
+
+(defn estimate-parallel
+  "A bake operation that sets :parallel in the opts of each shuffle. Enabled by
+the :estimate-parallel option, which is either true or a map of options that
+override default-opts.
+
+  Example:
+
+    (pig/generate-script {:estimate-parallel {:bytes-per-reducer 1e9
+                                              :max 500}}
+                         query)
+
+  Options:
+
+    :bytes-per-reducer - The number of input bytes to give each reducer.
+                         Defaults to 1GB.
+    :min - The minimum number of reducers. Defaults to 1.
+    :max - The maximum number of reducers. Defaults to 999.
+    :selectivity - A map of command type to the fraction of its input that it
+                   produces, merged with the defaults. A command can override
+                   this with :selectivity in its own opts.
+    :stats - A map of command key to the number of bytes it produced in a prior
+             run. These are used instead of the estimate. See bake-keys.
+
+  Note: Cascading flows are baked by generate-flow without options. To use
+        this, bake the query first with pigpen.cascading.oven/bake and pass
+        the result to generate-flow.
+"
+  [{:keys [estimate-parallel platform]} commands]
+  (when estimate-parallel
+    (if-let [keys (and (map? estimate-parallel) (::keys estimate-parallel))]
+      (do
+        (reset! keys (command-keys commands))
+        nil)
+      (let [opts (merge-with (fn [a b] (if (map? a) (merge a b) b))
+                             (assoc default-opts :platform platform)
+                             (when (map? estimate-parallel) estimate-parallel))
+            sizes (estimate-bytes opts commands)]
+        (map (fn [{:keys [ancestors] :as command}]
+               (let [in (map sizes ancestors)]
+                 (if (and (shuffle? platform command)
+                          (nil? (get-in command [:opts :parallel]))
+                          (every? number? in)
+                          (pos? (reduce + in)))
+                   (assoc-in command [:opts :parallel] (reducers opts (reduce + in)))
+                   command)))
+             commands)))))
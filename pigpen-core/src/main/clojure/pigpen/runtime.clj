@@ -17,7 +17,8 @@
 ;;
 
 (ns pigpen.runtime
-  "Functions for evaluating user code at runtime")
+  "Functions for evaluating user code at runtime"
+  (:require [pigpen.runtime.view :as view]))
 
 (set! *warn-on-reflection* true)
 
@@ -186,6 +187,18 @@ should have a single field, which is sequential. Applies f to the remaining args
       (catch Throwable z
         (throw (RuntimeException. (str "Exception evaluating: " f) z))))))
 
+(defn map->view
+  "Returns a read-only view of a java.util.Map. Keys are converted up front so
+they can be looked up; values are converted with `convert` as they're read."
+  [^java.util.Map value convert]
+  (view/map-view
+    (persistent!
+      (reduce (fn [acc k] (assoc! acc (convert k) k))
+              (transient {})
+              (.keySet value)))
+    #(.get value %)
+    convert))
+
 (defprotocol HybridToClojure
   (hybrid->clojure
     [value]
@@ -201,9 +214,7 @@ methods for any types they expect to see."))
     value)
   java.util.Map
   (hybrid->clojure [value]
-    (->> value
-      (map (fn [[k v]] [(hybrid->clojure k) (hybrid->clojure v)]))
-      (into {}))))
+    (map->view value hybrid->clojure)))
 
 (defprotocol NativeToClojure
   (native->clojure
@@ -220,9 +231,7 @@ methods for any types they expect to see. No clojure should be seen here."))
     value)
   java.util.Map
   (native->clojure [value]
-    (->> value
-      (map (fn [[k v]] [(native->clojure k) (native->clojure v)]))
-      (into {}))))
+    (map->view value native->clojure)))
 
 (defmulti pre-process
   "Optionally deserializes incoming data. Should return a fn that takes a single
@@ -0,0 +1,386 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.runtime.view
+  "Read-only clojure views over host data structures. A view implements the
+clojure map, vector, or seq interfaces directly over the underlying record and
+converts each value only when it's accessed. Anything that would change a view,
+such as assoc or conj, first copies it into a regular clojure value.
+
+A view reads through to the record it wraps, and caches each value once it's
+converted. If a platform reuses that record, copy it before creating a view.
+
+Nothing in here will be used directly with normal PigPen usage. Platforms use
+these from their HybridToClojure and NativeToClojure implementations."
+  (:require [taoensso.nippy :as nippy])
+  (:import [clojure.lang IPersistentMap IPersistentVector IPersistentCollection
+            ILookup Associative Sequential IHashEq IFn IObj MapEntry
+            MapEquivalence SeqIterator Util AFn RT ISeq Counted]
+           [java.util Map List]))
+
+(set! *warn-on-reflection* true)
+
+(defprotocol Realize
+  (realize [view]
+    "Copies a view into a regular clojure value. The values within it are
+converted, but any nested views are left as they are."))
+
+(extend-protocol Realize
+  nil
+  (realize [value] value)
+  Object
+  (realize [value] value))
+
+(defn ^:private unsupported []
+  (throw (UnsupportedOperationException. "PigPen views are read-only")))
+
+;; ********** Map **********
+
+(deftype MapView [index lookup convert cache meta]
+  ;; index is a map of clojure key -> handle. Values are read by calling
+  ;; (convert (lookup handle)). cache is an atom of key -> converted value,
+  ;; which is filled as values are read. Once it has every key, it's the
+  ;; realized map.
+
+  Realize
+  (realize [this]
+    (let [c @cache]
+      (if (= (count c) (count index))
+        c
+        (do
+          (doseq [k (keys index)]
+            (.valAt this k))
+          @cache))))
+
+  ILookup
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k not-found]
+    (let [h (get index k ::none)]
+      (if (identical? h ::none)
+        not-found
+        (let [v (get @cache k ::none)]
+          (if (identical? v ::none)
+            (let [v (convert (lookup h))]
+              (swap! cache assoc k v)
+              v)
+            v)))))
+
+  Associative
+  (containsKey [this k]
+    (contains? index k))
+  (entryAt [this k]
+    (when (contains? index k)
+      (MapEntry. k (.valAt this k))))
+  (assoc [this k v]
+    (assoc (realize this) k v))
+
+  IPersistentMap
+  (assocEx [this k v]
+    (.assocEx ^IPersistentMap (realize this) k v))
+  (without [this k]
+    (dissoc (realize this) k))
+
+  IPersistentCollection
+  (count [this]
+    (count index))
+  (cons [this o]
+    (conj (realize this) o))
+  (empty [this]
+    (with-meta {} meta))
+  (equiv [this o]
+    (Util/equiv (realize this) o))
+  (seq [this]
+    (seq
+      (map (fn [k] (MapEntry. k (.valAt this k))) (keys index))))
+
+  MapEquivalence
+
+  IHashEq
+  (hasheq [this]
+    (hash (realize this)))
+
+  IFn
+  (invoke [this k]
+    (.valAt this k nil))
+  (invoke [this k not-found]
+    (.valAt this k not-found))
+  (applyTo [this args]
+    (AFn/applyToHelper this args))
+
+  IObj
+  (meta [this] meta)
+  (withMeta [this m]
+    (MapView. index lookup convert cache m))
+
+  Iterable
+  (iterator [this]
+    (SeqIterator. (.seq this)))
+
+  Map
+  (size [this] (count index))
+  (isEmpty [this] (zero? (count index)))
+  (containsValue [this v] (.containsValue ^Map (realize this) v))
+  (get [this k] (.valAt this k nil))
+  (keySet [this] (set (keys index)))
+  (values [this] (.values ^Map (realize this)))
+  (entrySet [this] (.entrySet ^Map (realize this)))
+  (put [this k v] (unsupported))
+  (remove [this k] (unsupported))
+  (putAll [this m] (unsupported))
+  (clear [this] (unsupported))
+
+  Object
+  (equals [this o]
+    (.equals ^Object (realize this) o))
+  (hashCode [this]
+    (.hashCode ^Object (realize this)))
+  (toString [this]
+    (RT/printString this)))
+
+(defn map-view
+  "Returns a read-only map over a host record. The parameter `index` is a map of
+clojure key to handle; `lookup` reads the raw value for a handle and `convert`
+turns it into clojure. Both are called the first time a value is accessed.
+
+  Example:
+
+    (map-view {:a 0, :b 1} #(.get ^java.util.List record %) native->clojure)
+"
+  [index lookup convert]
+  (MapView. index lookup convert (atom {}) nil))
+
+;; ********** Vector **********
+
+(deftype VectorView [^long n lookup convert ^objects cache meta]
+  ;; Values are read by calling (convert (lookup i)) for i in [0, n). Each is
+  ;; cached in `cache`, where a value of cache itself means not yet converted.
+
+  Realize
+  (realize [this]
+    (persistent!
+      (reduce (fn [acc i] (conj! acc (.nth this (int i))))
+              (transient [])
+              (range n))))
+
+  IPersistentVector
+  (length [this] n)
+  (assocN [this i v]
+    (assoc (realize this) i v))
+  (cons [this o]
+    (conj (realize this) o))
+  (count [this] n)
+  (empty [this]
+    (with-meta [] meta))
+  (equiv [this o]
+    (Util/equiv (realize this) o))
+  (seq [this]
+    (when (pos? n)
+      (map #(.nth this (int %)) (range n))))
+  (peek [this]
+    (when (pos? n)
+      (.nth this (dec n))))
+  (pop [this]
+    (pop (realize this)))
+  (rseq [this]
+    (when (pos? n)
+      (map #(.nth this (int %)) (range (dec n) -1 -1))))
+  (containsKey [this k]
+    (and (integer? k) (< -1 (long k) n)))
+  (entryAt [this k]
+    (when (.containsKey this k)
+      (MapEntry. k (.nth this (int k)))))
+  (assoc [this k v]
+    (assoc (realize this) k v))
+  (valAt [this k]
+    (.valAt this k nil))
+  (valAt [this k not-found]
+    (if (.containsKey this k)
+      (.nth this (int k))
+      not-found))
+  (nth [this i]
+    (if (< -1 i n)
+      (let [v (aget cache i)]
+        (if (identical? v cache)
+          (let [v (convert (lookup i))]
+            (aset cache i v)
+            v)
+          v))
+      (throw (IndexOutOfBoundsException.))))
+  (nth [this i not-found]
+    (if (< -1 i n)
+      (.nth this i)
+      not-found))
+
+  Sequential
+
+  IHashEq
+  (hasheq [this]
+    (hash (realize this)))
+
+  IFn
+  (invoke [this i]
+    (.nth this (int i)))
+  (applyTo [this args]
+    (AFn/applyToHelper this args))
+
+  IObj
+  (meta [this] meta)
+  (withMeta [this m]
+    (VectorView. n lookup convert cache m))
+
+  Iterable
+  (iterator [this]
+    (SeqIterator. (.seq this)))
+
+  java.util.RandomAccess
+
+  List
+  (size [this] n)
+  (isEmpty [this] (zero? n))
+  (get [this i] (.nth this i))
+  (contains [this o] (.contains ^List (realize this) o))
+  (containsAll [this c] (.containsAll ^List (realize this) c))
+  (indexOf [this o] (.indexOf ^List (realize this) o))
+  (lastIndexOf [this o] (.lastIndexOf ^List (realize this) o))
+  (subList [this from to] (.subList ^List (realize this) from to))
+  (listIterator [this] (.listIterator ^List (realize this)))
+  (listIterator [this i] (.listIterator ^List (realize this) i))
+  (toArray [this] (.toArray ^List (realize this)))
+  (^objects toArray [this ^objects a] (.toArray ^List (realize this) a))
+  (add [this o] (unsupported))
+  (add [this i o] (unsupported))
+  (addAll [this c] (unsupported))
+  (addAll [this i c] (unsupported))
+  (^Object remove [this ^int i] (unsupported))
+  (^boolean remove [this ^Object o] (unsupported))
+  (removeAll [this c] (unsupported))
+  (retainAll [this c] (unsupported))
+  (set [this i o] (unsupported))
+  (clear [this] (unsupported))
+
+  Object
+  (equals [this o]
+    (.equals ^Object (realize this) o))
+  (hashCode [this]
+    (.hashCode ^Object (realize this)))
+  (toString [this]
+    (RT/printString this)))
+
+(defn vector-view
+  "Returns a read-only vector over a host record with `n` positions. The
+function `lookup` reads the raw value at an index and `convert` turns it into
+clojure. Both are called the first time a value is accessed.
+
+  Example:
+
+    (vector-view (.size tuple) #(.get tuple %) native->clojure)
+"
+  [n lookup convert]
+  (let [cache (object-array n)]
+    (java.util.Arrays/fill cache cache)
+    (VectorView. n lookup convert cache nil)))
+
+;; ********** Seq **********
+
+(deftype SeqView [s c meta]
+  ;; s is a delay of the converted seq, which is a lazy seq, so each value is
+  ;; converted once as it's first read and then cached. c is a delay of the
+  ;; count.
+
+  Realize
+  (realize [this]
+    (doall (or @s ())))
+
+  ISeq
+  (first [this]
+    (first @s))
+  (next [this]
+    (next @s))
+  (more [this]
+    (rest @s))
+  (cons [this o]
+    (clojure.core/cons o this))
+
+  IPersistentCollection
+  (count [this]
+    @c)
+  (empty [this]
+    (with-meta () meta))
+  (equiv [this o]
+    (Util/equiv (or @s ()) o))
+  (seq [this]
+    @s)
+
+  Counted
+
+  Sequential
+
+  IHashEq
+  (hasheq [this]
+    (hash-ordered-coll (or @s ())))
+
+  IObj
+  (meta [this] meta)
+  (withMeta [this m]
+    (SeqView. s c m))
+
+  Iterable
+  (iterator [this]
+    (SeqIterator. @s))
+
+  Object
+  (equals [this o]
+    (Util/equals (or @s ()) o))
+  (hashCode [this]
+    (.hashCode ^Object (realize this)))
+  (toString [this]
+    (RT/printString this)))
+
+(defn seq-view
+  "Returns a read-only seq over a host collection. The function `items` is
+called once, when the seq is first read, and should return a seq of raw values;
+`convert` is applied to each value as it's read. Converted values are cached, so
+the collection is only traversed once. If the number of values is known, it can
+be passed as `n` so that count doesn't traverse the collection.
+
+  Example:
+
+    (seq-view #(iterator-seq (.iterator bag)) native->clojure)
+    (seq-view (.size bag) #(iterator-seq (.iterator bag)) native->clojure)
+"
+  ([items convert]
+    (let [s (delay (seq (map convert (items))))]
+      (SeqView. s (delay (clojure.core/count @s)) nil)))
+  ([n items convert]
+    (SeqView. (delay (seq (map convert (items)))) (delay n) nil)))
+
+;; ********** Serialization **********
+
+;; Nippy only knows how to freeze the concrete clojure types, so views are
+;; frozen as the value they represent.
+(extend-protocol nippy/Freezable
+  MapView
+  (freeze-to-out* [this out]
+    (nippy/freeze-to-out* (realize this) out))
+  VectorView
+  (freeze-to-out* [this out]
+    (nippy/freeze-to-out* (realize this) out))
+  SeqView
+  (freeze-to-out* [this out]
+    (nippy/freeze-to-out* (realize this) out)))
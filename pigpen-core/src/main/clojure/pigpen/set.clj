@@ -112,7 +112,7 @@ map of options.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
     :partition-by - A partition function to use. Should take the form:
       (fn [n key] (mod (hash key) n)) Where n is the number of partitions and
       key is the key to partition.
@@ -139,7 +139,7 @@ Optionally takes a map of options as the first parameter.
 
   Options:
 
-    :parallel - the degree of parallelism to use (pig only)
+    :parallel - the degree of parallelism to use
 
   See also: pigpen.core/union-multiset, pigpen.core/distinct
 "
@@ -211,7 +211,7 @@ results. Optionally takes a map of options as the first parameter.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
 
   See also: pigpen.core/intersection-multiset, pigpen.core/difference
 "
@@ -235,7 +235,7 @@ results. Optionally takes a map of options as the first parameter.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
 
   See also: pigpen.core/intersection, pigpen.core/difference
 "
@@ -259,7 +259,7 @@ results. Optionally takes a map of options as the first parameter.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
 
   See also: pigpen.core/difference-multiset, pigpen.core/intersection
 "
@@ -283,7 +283,7 @@ results. Optionally takes a map of options as the first parameter.
 
   Options:
 
-    :parallel - The degree of parallelism to use (pig only)
+    :parallel - The degree of parallelism to use
 
   See also: pigpen.core/difference, pigpen.core/intersection
 "
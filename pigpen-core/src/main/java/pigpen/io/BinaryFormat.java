@@ -0,0 +1,125 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.io;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * The PigPen binary format. A file is a header, a series of compressed blocks
+ * of records, and an index of those blocks:
+ *
+ * <pre>
+ * file    := MAGIC sync block* index trailer
+ * block   := sync int:records int:size int:compressed-size byte[compressed-size]
+ * index   := sync int:-1 int:blocks (long:offset long:records)*
+ * trailer := long:index-offset MAGIC
+ * record  := int:fields (int:length byte[length])*
+ * </pre>
+ *
+ * Blocks are compressed with deflate. Each field is a value frozen by the
+ * PigPen runtime, or a length of -1 for null. The sync marker is random for
+ * each file and precedes every block, so a reader that starts in the middle of
+ * a file can find the next block boundary. The index is used to split a file
+ * without scanning it.
+ */
+public final class BinaryFormat {
+
+    public static final byte[] MAGIC = { 'P', 'P', 'B', 1 };
+
+    public static final int SYNC_SIZE = 16;
+
+    public static final int HEADER_SIZE = MAGIC.length + SYNC_SIZE;
+
+    public static final int TRAILER_SIZE = 8 + MAGIC.length;
+
+    public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+    static final int INDEX_MARKER = -1;
+
+    static final int NULL_FIELD = -1;
+
+    private BinaryFormat() {
+    }
+
+    /**
+     * Reads the header of a file and returns its sync marker.
+     */
+    public static byte[] readHeader(final InputStream in) throws IOException {
+        final DataInputStream data = new DataInputStream(in);
+        final byte[] magic = new byte[MAGIC.length];
+        data.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Not a PigPen binary file");
+        }
+        final byte[] sync = new byte[SYNC_SIZE];
+        data.readFully(sync);
+        return sync;
+    }
+
+    /**
+     * Reads the trailer of a file and returns the offset of its index. The
+     * input should be positioned TRAILER_SIZE bytes before the end of the file.
+     */
+    public static long readIndexOffset(final DataInput in) throws IOException {
+        final long indexOffset = in.readLong();
+        final byte[] magic = new byte[MAGIC.length];
+        in.readFully(magic);
+        if (!Arrays.equals(MAGIC, magic)) {
+            throw new IOException("Missing PigPen binary index");
+        }
+        return indexOffset;
+    }
+
+    /**
+     * Reads the index of a file. The input should be positioned at
+     * indexOffset. Returns the offset and record count of each block, followed
+     * by the offset of the index itself, which is the end of the last block.
+     */
+    public static long[][] readIndex(final DataInput in, final long indexOffset) throws IOException {
+        in.skipBytes(SYNC_SIZE);
+        if (in.readInt() != INDEX_MARKER) {
+            throw new IOException("Corrupt PigPen binary index");
+        }
+        final int blocks = in.readInt();
+        final long[][] index = new long[blocks + 1][];
+        for (int i = 0; i < blocks; i++) {
+            index[i] = new long[] { in.readLong(), in.readLong() };
+        }
+        index[blocks] = new long[] { indexOffset, 0 };
+        return index;
+    }
+
+    /**
+     * Reads the index of a local file. See {@link #readIndex(DataInput, long)}
+     */
+    public static long[][] readIndex(final RandomAccessFile file) throws IOException {
+        if (file.length() < HEADER_SIZE + TRAILER_SIZE) {
+            throw new IOException("Not a PigPen binary file");
+        }
+        file.seek(file.length() - TRAILER_SIZE);
+        final long indexOffset = readIndexOffset(file);
+        file.seek(indexOffset);
+        return readIndex(file, indexOffset);
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads records in the PigPen binary format from a range of a file. The range
+ * includes every block whose sync marker starts within it, so a file can be
+ * split anywhere and each block is read exactly once. See {@link BinaryFormat}.
+ */
+public class BinaryReader implements Closeable {
+
+    /**
+     * A compressed block of records. Blocks can be decoded independently.
+     */
+    public static class Block {
+
+        public final int records;
+        private final int size;
+        private final byte[] compressed;
+
+        Block(final int records, final int size, final byte[] compressed) {
+            this.records = records;
+            this.size = size;
+            this.compressed = compressed;
+        }
+
+        public List<byte[][]> decode() throws IOException {
+            final byte[] data = new byte[this.size];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(this.compressed);
+                int read = 0;
+                while (read < this.size && !inflater.finished()) {
+                    read += inflater.inflate(data, read, this.size - read);
+                }
+                if (read != this.size) {
+                    throw new IOException("Corrupt PigPen binary block");
+                }
+            } catch (final DataFormatException e) {
+                throw new IOException(e);
+            } finally {
+                inflater.end();
+            }
+
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            final List<byte[][]> values = new ArrayList<byte[][]>(this.records);
+            for (int i = 0; i < this.records; i++) {
+                final byte[][] fields = new byte[in.readInt()][];
+                for (int f = 0; f < fields.length; f++) {
+                    final int length = in.readInt();
+                    if (length != BinaryFormat.NULL_FIELD) {
+                        fields[f] = new byte[length];
+                        in.readFully(fields[f]);
+                    }
+                }
+                values.add(fields);
+            }
+            return values;
+        }
+    }
+
+    private final DataInputStream in;
+    private final byte[] sync;
+    private final long end;
+    private long position;
+    private boolean synced = false;
+    private boolean done = false;
+
+    private List<byte[][]> current = null;
+    private int currentIndex = 0;
+
+    /**
+     * Reads an entire file. The header is read from in.
+     */
+    public BinaryReader(final InputStream in) throws IOException {
+        this(in, BinaryFormat.readHeader(in), BinaryFormat.HEADER_SIZE, Long.MAX_VALUE);
+        this.synced = true;
+    }
+
+    /**
+     * Reads the blocks that start in [start, end). The stream must be
+     * positioned at start, which should be after the header. The sync marker
+     * is read separately from the header of the file.
+     */
+    public BinaryReader(final InputStream in, final byte[] sync, final long start, final long end) {
+        this.in = new DataInputStream(in);
+        this.sync = sync;
+        this.position = start;
+        this.end = end;
+    }
+
+    public long getPosition() {
+        return this.position;
+    }
+
+    private int readByte() throws IOException {
+        final int b = this.in.read();
+        if (b >= 0) {
+            this.position++;
+        }
+        return b;
+    }
+
+    /**
+     * Finds the next sync marker. Returns false if there isn't one.
+     */
+    private boolean scanSync() throws IOException {
+        final byte[] window = new byte[BinaryFormat.SYNC_SIZE];
+        final int n = window.length;
+        long read = 0;
+        while (true) {
+            final int b = readByte();
+            if (b < 0) {
+                return false;
+            }
+            window[(int) (read % n)] = (byte) b;
+            read++;
+            if (read >= n) {
+                boolean match = true;
+                for (int i = 0; match && i < n; i++) {
+                    match = window[(int) ((read + i) % n)] == this.sync[i];
+                }
+                if (match) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private boolean readSync() throws IOException {
+        final byte[] marker = new byte[BinaryFormat.SYNC_SIZE];
+        try {
+            this.in.readFully(marker);
+        } catch (final EOFException e) {
+            return false;
+        }
+        this.position += marker.length;
+        if (!Arrays.equals(this.sync, marker)) {
+            throw new IOException("Corrupt PigPen binary file: missing sync marker");
+        }
+        return true;
+    }
+
+    /**
+     * Returns the next compressed block, or null if there are no more blocks
+     * in this range.
+     */
+    public Block nextBlock() throws IOException {
+        if (this.done) {
+            return null;
+        }
+        final boolean found = this.synced ? readSync() : scanSync();
+        this.synced = true;
+        if (!found || this.position - BinaryFormat.SYNC_SIZE >= this.end) {
+            this.done = true;
+            return null;
+        }
+        final int records = this.in.readInt();
+        if (records == BinaryFormat.INDEX_MARKER) {
+            this.done = true;
+            return null;
+        }
+        final int size = this.in.readInt();
+        final byte[] compressed = new byte[this.in.readInt()];
+        this.in.readFully(compressed);
+        this.position += 12 + compressed.length;
+        return new Block(records, size, compressed);
+    }
+
+    /**
+     * Returns the fields of the next record, or null if there are no more
+     * records in this range.
+     */
+    public byte[][] next() throws IOException {
+        while (this.current == null || this.currentIndex == this.current.size()) {
+            final Block block = nextBlock();
+            if (block == null) {
+                return null;
+            }
+            this.current = block.decode();
+            this.currentIndex = 0;
+        }
+        return this.current.get(this.currentIndex++);
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.Deflater;
+
+/**
+ * Writes records in the PigPen binary format. Each record is an array of
+ * fields that have already been frozen, so values are never re-encoded. See
+ * {@link BinaryFormat}.
+ */
+public class BinaryWriter implements Closeable {
+
+    private final DataOutputStream out;
+    private final int blockSize;
+    private final byte[] sync = new byte[BinaryFormat.SYNC_SIZE];
+
+    private final ByteArrayOutputStream buffer;
+    private final DataOutputStream bufferOut;
+    private final Deflater deflater = new Deflater();
+    private byte[] compressed = new byte[0];
+    private int records = 0;
+
+    private final List<long[]> index = new ArrayList<long[]>();
+    private long position = 0;
+
+    public BinaryWriter(final OutputStream out) throws IOException {
+        this(out, BinaryFormat.DEFAULT_BLOCK_SIZE);
+    }
+
+    public BinaryWriter(final OutputStream out, final int blockSize) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.blockSize = blockSize;
+        this.buffer = new ByteArrayOutputStream(blockSize + 8192);
+        this.bufferOut = new DataOutputStream(this.buffer);
+
+        final UUID uuid = UUID.randomUUID();
+        final long[] parts = { uuid.getMostSignificantBits(), uuid.getLeastSignificantBits() };
+        for (int i = 0; i < BinaryFormat.SYNC_SIZE; i++) {
+            this.sync[i] = (byte) (parts[i / 8] >>> (8 * (i % 8)));
+        }
+
+        this.out.write(BinaryFormat.MAGIC);
+        this.out.write(this.sync);
+        this.position = BinaryFormat.HEADER_SIZE;
+    }
+
+    /**
+     * Writes a single record. A null field is written as null.
+     */
+    public void write(final byte[][] fields) throws IOException {
+        this.bufferOut.writeInt(fields.length);
+        for (final byte[] field : fields) {
+            if (field == null) {
+                this.bufferOut.writeInt(BinaryFormat.NULL_FIELD);
+            } else {
+                this.bufferOut.writeInt(field.length);
+                this.bufferOut.write(field);
+            }
+        }
+        this.records++;
+        if (this.buffer.size() >= this.blockSize) {
+            writeBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        final byte[] data = this.buffer.toByteArray();
+
+        this.deflater.reset();
+        this.deflater.setInput(data);
+        this.deflater.finish();
+        if (this.compressed.length < data.length + 64) {
+            this.compressed = new byte[data.length + data.length / 8 + 64];
+        }
+        int size = 0;
+        while (!this.deflater.finished()) {
+            if (size == this.compressed.length) {
+                final byte[] larger = new byte[this.compressed.length * 2];
+                System.arraycopy(this.compressed, 0, larger, 0, size);
+                this.compressed = larger;
+            }
+            size += this.deflater.deflate(this.compressed, size, this.compressed.length - size);
+        }
+
+        this.index.add(new long[] { this.position, this.records });
+        this.out.write(this.sync);
+        this.out.writeInt(this.records);
+        this.out.writeInt(data.length);
+        this.out.writeInt(size);
+        this.out.write(this.compressed, 0, size);
+        this.position += BinaryFormat.SYNC_SIZE + 12 + size;
+
+        this.buffer.reset();
+        this.records = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (this.records > 0) {
+                writeBlock();
+            }
+            final long indexOffset = this.position;
+            this.out.write(this.sync);
+            this.out.writeInt(BinaryFormat.INDEX_MARKER);
+            this.out.writeInt(this.index.size());
+            for (final long[] entry : this.index) {
+                this.out.writeLong(entry[0]);
+                this.out.writeLong(entry[1]);
+            }
+            this.out.writeLong(indexOffset);
+            this.out.write(BinaryFormat.MAGIC);
+            this.out.flush();
+        } finally {
+            this.deflater.end();
+            this.out.close();
+        }
+    }
+}
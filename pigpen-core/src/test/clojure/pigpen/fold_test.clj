@@ -18,4 +18,14 @@
 
 (ns pigpen.fold-test
   (:require [clojure.test :refer :all]
-            [pigpen.fold]))
+            [pigpen.fold :as fold]))
+
+(deftest test-heavy-hitters-combine
+  (let [{:keys [combinef reducef post]} (fold/heavy-hitters 2)
+        ;; :y is evicted from l by :z, but is the most frequent overall
+        l (reduce reducef (combinef) [:x :x :x :y :y :z])
+        r (reduce reducef (combinef) [:y :y :y :w])
+        [[v c]] (post (combinef l r))]
+    (is (= v :y))
+    (testing "counts are never underestimated"
+      (is (<= 5 c)))))
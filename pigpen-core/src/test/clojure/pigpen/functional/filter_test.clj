@@ -62,3 +62,14 @@
                  (t/dump harness)
                  count)]
     (is (< 400 result 600))))
+
+(t/deftest test-sample-seed
+  "sample with a seed"
+  [harness]
+  (let [sample #(->>
+                  (t/data harness (range 1000))
+                  (pig-filter/sample 0.1 {:seed 42})
+                  (t/dump harness))
+        result (sample)]
+    (is (< 50 (count result) 150))
+    (is (= result (sample)))))
@@ -20,6 +20,7 @@
   (:require [clojure.test :refer [is]]
             [pigpen.functional-test :as t]
             [pigpen.extensions.test :refer [test-diff pigsym-zero pigsym-inc]]
+            [pigpen.map :as pig-map]
             [pigpen.join :as pig-join]
             [pigpen.fold :as fold]))
 
@@ -199,6 +200,22 @@
     (is (= (t/dump harness command)
            [5/2]))))
 
+(t/deftest test-sum-mixed
+  "test sum with mixed numeric types"
+  [harness]
+  (let [data (t/data harness [1 2 3/2 2.5])
+        command (pig-join/fold (fold/sum) data)]
+    (is (= (t/dump harness command)
+           [7.0]))))
+
+(t/deftest test-avg-empty
+  "test avg with no values"
+  [harness]
+  (let [data (t/data harness [1 2 3])
+        command (pig-join/fold (->> (fold/filter neg?) (fold/avg)) data)]
+    (is (= (t/dump harness command)
+           [nil]))))
+
 (t/deftest test-avg-with-cogroup
   "test cogroup with two folds"
   [harness]
@@ -298,3 +315,62 @@
         command (pig-join/fold (fold/max-key :foo) data)]
     (is (= (t/dump harness command)
            [{:foo 4 :bar "a"}]))))
+
+(t/deftest test-approx-count-distinct
+  "test approx-count-distinct"
+  [harness]
+  (let [data (t/data harness (concat (range 1000) (range 500)))
+        command (pig-join/fold (fold/approx-count-distinct) data)
+        [estimate] (t/dump harness command)]
+    (is (< 980 estimate 1020))))
+
+(t/deftest test-approx-quantiles
+  "test approx-quantiles"
+  [harness]
+  (let [data (t/data harness (shuffle (range 10000)))
+        command (pig-join/fold (fold/approx-quantiles 100 [0.0 0.5 0.9 1.0] (fold/vec)) data)
+        [[q0 q50 q90 q100]] (t/dump harness command)]
+    (is (= q0 0))
+    (is (< 4700 q50 5300))
+    (is (< 8700 q90 9300))
+    (is (= q100 9999))))
+
+(t/deftest test-count-min-sketch
+  "test count-min-sketch"
+  [harness]
+  (let [data (t/data harness (concat (repeat 100 "foo") (repeat 10 "bar") (map str (range 1000))))
+        command (->> data
+                  (pig-join/fold (fold/count-min-sketch 256 4 (fold/vec)))
+                  (pig-map/map (fn [sketch]
+                                 [(fold/count-min-estimate sketch "foo")
+                                  (fold/count-min-estimate sketch "bar")])))
+        [[foo bar]] (t/dump harness command)]
+    (is (<= 100 foo 110))
+    (is (<= 10 bar 20))))
+
+(t/deftest test-heavy-hitters
+  "test heavy-hitters"
+  [harness]
+  (let [data (t/data harness (shuffle (concat (repeat 50 :a) (repeat 30 :b) (repeat 20 :c) (range 20))))
+        command (pig-join/fold (fold/heavy-hitters 10) data)
+        [top] (t/dump harness command)]
+    (is (= [:a :b :c] (take 3 (map first top))))
+    (is (<= 50 (second (first top))))))
+
+(t/deftest test-reservoir-sample
+  "test reservoir-sample"
+  [harness]
+  (let [data (t/data harness (range 100))
+        command (pig-join/fold (fold/reservoir-sample 10) data)
+        [sample] (t/dump harness command)]
+    (is (= 10 (count sample)))
+    (is (= 10 (count (set sample))))
+    (is (every? (set (range 100)) sample))))
+
+(t/deftest test-reservoir-sample-small
+  "test reservoir-sample with fewer than k values"
+  [harness]
+  (let [data (t/data harness [1 2 3])
+        command (pig-join/fold (fold/reservoir-sample 10) data)]
+    (is (= (map sort (t/dump harness command))
+           [[1 2 3]]))))
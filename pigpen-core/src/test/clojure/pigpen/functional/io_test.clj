@@ -234,3 +234,19 @@
       (t/dump harness))
     (test-diff (t/read harness file)
                ["{\"a\":1,\"b\":\"foo\"}" "{\"a\":2,\"b\":\"bar\"}"])))
+
+(t/deftest test-binary
+  "store and load binary"
+  [harness]
+  (let [file (t/file harness)
+        data [{:a 1, :b "foo"} [1 2 3] nil 42]]
+    (->>
+      (t/data harness data)
+      (pig-io/store-binary file)
+      (t/dump harness))
+    (test-diff
+      (->>
+        (pig-io/load-binary file)
+        (t/dump harness)
+        (set))
+      (set data))))
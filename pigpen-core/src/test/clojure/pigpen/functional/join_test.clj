@@ -149,6 +149,21 @@
     '#{[:bar 2]
        [:foo 3]}))
 
+(t/deftest test-fold-cache
+  "fold with a map-side cache that is always flushed"
+  [harness]
+  (test-diff
+    (->>
+      (t/data harness fold-data)
+      (pig-join/group-by :k
+                         {:fold (fold/vec)
+                          :fold-cache {:max-entries 1, :max-bytes 1}})
+      (t/dump harness)
+      (map (fn [[k vs]] [k (count vs)]))
+      (set))
+    '#{[:bar 2]
+       [:foo 3]}))
+
 (t/deftest test-fold-cogroup-single
   "single fold co-group"
   [harness]
@@ -448,6 +463,22 @@
        [{:k :i, :v 7} {:k :i, :v 6}]
        [{:k :i, :v 7} {:k :i, :v 8}]}))
 
+(t/deftest test-join-inner-bloom-filter
+  "inner join with a bloom filter"
+  [harness]
+  (test-diff
+    (->>
+      (pig-join/join [((t/data harness join-data1) :on :k)
+                      ((t/data harness join-data2) :on :k)]
+                     vector
+                     {:bloom-filter {:expected-keys 100}})
+      (t/dump harness)
+      (set))
+    '#{[{:k :i, :v 5} {:k :i, :v 6}]
+       [{:k :i, :v 5} {:k :i, :v 8}]
+       [{:k :i, :v 7} {:k :i, :v 6}]
+       [{:k :i, :v 7} {:k :i, :v 8}]}))
+
 (t/deftest test-join-left-outer
   "left outer join"
   [harness]
@@ -652,6 +683,21 @@
          {:k :i, :v 5}
          {:k :i, :v 7}})))
 
+(t/deftest test-filter-by-bloom-filter
+  "filter-by with a bloom filter"
+  [harness]
+  (let [keys (t/data harness [:i nil])]
+    (test-diff
+      (->>
+        (t/data harness join-data1)
+        (pig-join/filter-by :k keys {:bloom-filter {:expected-keys 100}})
+        (t/dump harness)
+        (set))
+      '#{{:k nil, :v 1}
+         {:k nil, :v 3}
+         {:k :i, :v 5}
+         {:k :i, :v 7}})))
+
 (t/deftest test-filter-by-duplicate-keys
   "normal filter-by with duplicate keys"
   [harness]
@@ -18,4 +18,44 @@
 
 (ns pigpen.join-test
   (:require [clojure.test :refer :all]
-            [pigpen.join]))
+            [pigpen.join :as pig-join]
+            [pigpen.io :as pig-io]
+            [pigpen.oven :as oven]))
+
+(defn ^:private bloom-plan
+  "Bakes a join of two relations and returns the broadcast join that attaches
+the bloom filter, and the pre-filter step over the second relation"
+  [opts]
+  (let [data (pig-io/return [{:k 1} {:k 2}])
+        commands (oven/bake :test {} {}
+                            (pig-join/join [(data :on :k) (data :on :k)] vector opts))
+        lookup (->> commands (map (juxt :id identity)) (into {}))
+        broadcast (->> commands
+                    (filter (comp :broadcast :opts))
+                    (first))
+        prefilter (->> commands
+                    (filter (fn [{:keys [type ancestors] :as c}]
+                              (and (= :project type)
+                                   (re-find #"bloom-contains\?" (pr-str (:projections c)))
+                                   (= broadcast (lookup (first ancestors))))))
+                    (first))
+        join (->> commands
+               (filter (comp #{:join} :type))
+               (remove (comp :broadcast :opts))
+               (first))]
+    {:broadcast broadcast
+     :prefilter prefilter
+     :join join}))
+
+(deftest test-join-bloom-filter-plan
+  (testing "the second relation is filtered before the join"
+    (let [{:keys [broadcast prefilter join]} (bloom-plan {:bloom-filter {:expected-keys 100}})]
+      (is (= :replicated (get-in broadcast [:opts :strategy])))
+      (is prefilter)
+      (is (some #{(:id prefilter)} (:ancestors join)))
+      (is (not (contains? (:opts join) :bloom-filter)))))
+
+  (testing "no pre-filter by default"
+    (let [{:keys [broadcast prefilter]} (bloom-plan {})]
+      (is (nil? broadcast))
+      (is (nil? prefilter)))))
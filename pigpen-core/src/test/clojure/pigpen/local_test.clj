@@ -21,7 +21,11 @@
             [clojure.test :refer :all]
             [pigpen.raw :as raw]
             [pigpen.core :as pig]
-            [pigpen.local :as local :refer [PigPenLocalLoader]]))
+            [pigpen.local :as local :refer [PigPenLocalLoader]]
+            [pigpen.local.record :as record]
+            [pigpen.local.compress :as compress]
+            [clojure.java.io :as io])
+  (:import [java.util.zip GZIPInputStream]))
 
 (deftest test-cross-product
 
@@ -73,6 +77,41 @@
            {r1v1 3, r1v2 4, r2v2 6, r2v1 5}
            {r1v1 3, r1v2 4, r2v2 8, r2v1 7}}))))
 
+(deftest test-record
+  (let [r (record/from-map (record/schema '[r1/a r1/b r1/c]) '{r1/a 1, r1/b nil})]
+
+    (testing "absent fields"
+      (is (= r '{r1/a 1, r1/b nil}))
+      (is (contains? r 'r1/b))
+      (is (not (contains? r 'r1/c)))
+      (is (= (hash r) (hash '{r1/a 1, r1/b nil}))))
+
+    (testing "rename"
+      (let [r' ((local/update-field-ids 'r2) r)]
+        (is (= r' '{r2/a 1, r2/b nil}))
+        (is (identical? (.-values r) (.-values r')))
+        (is (identical? (.-schema r')
+                        (.-schema ((local/update-field-ids 'r2) r))))))
+
+    (testing "without"
+      (is (= ((record/without 'r1/a) r) '{r1/b nil})))
+
+    (testing "prepend"
+      (is (= ((record/prepend 'index) r 0) '{index 0, r1/a 1, r1/b nil})))
+
+    (testing "combine"
+      (let [r2 (record/from-values (record/schema '[r2/x]) [2])]
+        (is (= (record/combine r r2) '{r1/a 1, r1/b nil, r2/x 2}))))
+
+    (testing "select"
+      (is (= ((record/selector '[r1/b "s" r1/a r1/c]) r) [nil "s" 1 nil])))
+
+    (testing "group"
+      (let [group (record/grouper (record/schema '[g/group r1/a r1/b r1/c]))
+            r' (record/from-map (.-schema r) '{r1/a 3})]
+        (is (= (group :k [r r r'])
+               '{g/group :k, r1/a (1 1 3), r1/b (nil nil)}))))))
+
 (defmethod local/load :bad-storage [command]
   (let [fail (get-in command [:opts :fail])]
     (reify PigPenLocalLoader
@@ -115,3 +154,127 @@
   (let [data (pig/return [1 2 3])
         command (pig/map (fn [x] (throw (java.lang.Exception.))) data)]
     (is (thrown? Exception (local/dump command)))))
+
+(def cache-calls (atom 0))
+
+(defn ^:private cache-query
+  ([] (cache-query 1))
+  ([n]
+    (->> (pig/return [1 2 3])
+      (pig/map (fn [x] (swap! cache-calls inc) (* x x n)))
+      (pig/cache)
+      (pig/map inc))))
+
+(deftest test-cache
+  (testing "hit"
+    (let [opts {:cache {:dir (str "build/local-test/cache/" (gensym))}}]
+      (reset! cache-calls 0)
+      (is (= (local/dump opts (cache-query)) [2 5 10]))
+      (is (= @cache-calls 3))
+      (is (= (local/dump opts (cache-query)) [2 5 10]))
+      (is (= @cache-calls 3))))
+
+  (testing "evicted"
+    (let [opts {:cache {:dir (str "build/local-test/cache/" (gensym))
+                        :max-bytes 0}}]
+      (reset! cache-calls 0)
+      (is (= (local/dump opts (cache-query)) [2 5 10]))
+      (testing "not the entry just written"
+        (is (= (local/dump opts (cache-query)) [2 5 10]))
+        (is (= @cache-calls 3)))
+      (is (= (local/dump opts (cache-query 2)) [3 9 19]))
+      (is (= (local/dump opts (cache-query)) [2 5 10]))
+      (is (= @cache-calls 9))))
+
+  (testing "least recently read"
+    (let [dir (str "build/local-test/cache/" (gensym))
+          opts {:cache {:dir dir}}]
+      (reset! cache-calls 0)
+      (local/dump opts (cache-query 1))
+      (local/dump opts (cache-query 2))
+      (doseq [f (file-seq (io/file dir))]
+        (.setLastModified ^java.io.File f 0))
+      ;; reading 1 makes 2 the least recently used
+      (local/dump opts (cache-query 1))
+      (let [sizes (->> (file-seq (io/file dir))
+                    (filter #(= "data" (.getName ^java.io.File %)))
+                    (map #(.length ^java.io.File %)))]
+        (local/dump (assoc-in opts [:cache :max-bytes] (* 2 (apply max sizes)))
+                    (cache-query 3)))
+      (reset! cache-calls 0)
+      (local/dump opts (cache-query 1))
+      (is (= @cache-calls 0))
+      (local/dump opts (cache-query 2))
+      (is (= @cache-calls 3))))
+
+  (testing "disabled"
+    (reset! cache-calls 0)
+    (is (= (local/dump {:cache false} (cache-query)) [2 5 10]))
+    (is (= (local/dump {:cache false} (cache-query)) [2 5 10]))
+    (is (= @cache-calls 6))))
+
+(deftest test-compressed-store
+  (let [file (str "build/local-test/compress/" (gensym) ".gz")
+        data (map str (range 10000))]
+    (io/make-parents file)
+    (with-redefs [compress/block-size 256]
+      (->> (pig/return data)
+        (pig/store-string file)
+        (local/dump)))
+
+    (testing "readable as gzip"
+      (is (= (line-seq (io/reader (GZIPInputStream. (io/input-stream file))))
+             data)))
+
+    (testing "written in blocks"
+      (with-open [in (java.io.BufferedInputStream. (io/input-stream file))]
+        (is (< 1 (count (compress/blocks compress/gzip in))))))
+
+    (testing "load"
+      (is (= (->> (pig/load-string file)
+               (local/dump))
+             data)))))
+
+(deftest test-missing-codec
+  (let [bzip2 (get-method compress/codec "bz2")]
+    (remove-method compress/codec "bz2")
+    (try
+      (is (thrown-with-msg? clojure.lang.ExceptionInfo #"commons-compress"
+            (->> (pig/return ["a"])
+              (pig/store-string "build/local-test/compress/missing.bz2")
+              (local/dump))))
+      (is (nil? (compress/location-codec "build/local-test/compress/plain.txt")))
+      (finally
+        (when-not (= bzip2 (get-method compress/codec :default))
+          (.addMethod ^clojure.lang.MultiFn compress/codec "bz2" bzip2))))))
+
+(deftest test-binary-blocks
+  (let [file (str "build/local-test/binary/" (gensym))
+        data (range 10000)]
+    (io/make-parents file)
+    (with-open [writer (pigpen.io.BinaryWriter. (io/output-stream file) 1024)]
+      (doseq [x data]
+        (.write writer (into-array [(.getBytes (str x))]))))
+
+    (testing "index"
+      (with-open [f (java.io.RandomAccessFile. file "r")]
+        (let [index (pigpen.io.BinaryFormat/readIndex f)]
+          (is (< 2 (count index)))
+          (is (= (count data) (reduce + (map second index)))))))
+
+    (testing "splits"
+      ;; Readers for arbitrary ranges read each record exactly once
+      (let [length (.length (io/file file))
+            sync (with-open [in (io/input-stream file)]
+                   (pigpen.io.BinaryFormat/readHeader in))
+            read-range (fn [start end]
+                         (with-open [in (java.io.FileInputStream. file)]
+                           (let [start (max start pigpen.io.BinaryFormat/HEADER_SIZE)]
+                             (.skip in start)
+                             (let [reader (pigpen.io.BinaryReader. (java.io.BufferedInputStream. in) sync start end)]
+                               (->> (repeatedly #(.next reader))
+                                 (take-while identity)
+                                 (mapv #(Long/parseLong (String. ^bytes (first %)))))))))]
+        (is (= data
+               (mapcat (fn [start] (read-range start (+ start 1000)))
+                       (range 0 length 1000))))))))
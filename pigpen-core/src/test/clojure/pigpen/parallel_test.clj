@@ -0,0 +1,188 @@
+;;
+;;
+;;  Copyright 2015 Netflix, Inc.
+;;
+;;     Licensed under the Apache License, Version 2.0 (the "License");
+;;     you may not use this file except in compliance with the License.
+;;     You may obtain a copy of the License at
+;;
+;;         http://www.apache.org/licenses/LICENSE-2.0
+;;
+;;     Unless required by applicable law or agreed to in writing, software
+;;     distributed under the License is distributed on an "AS IS" BASIS,
+;;     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+;;     See the License for the specific language governing permissions and
+;;     limitations under the License.
+;;
+;;
+
+(ns pigpen.parallel-test
+  (:require [clojure.test :refer :all]
+            [clojure.java.io :as io]
+            [pigpen.extensions.test :refer [pigsym-inc]]
+            [pigpen.oven :as oven]
+            [pigpen.parallel :refer :all]
+            [pigpen.io :as pig-io]
+            [pigpen.map :as pig-map]
+            [pigpen.filter :as pig-filter]
+            [pigpen.set :as pig-set]
+            [pigpen.join :as pig-join]))
+
+(defn ^:private data-dir
+  "Creates a directory with n files of `size` bytes each"
+  ([n] (data-dir n 1000))
+  ([n size]
+    (let [dir (io/file "build/parallel-test" (str (gensym "data")))]
+      (.mkdirs dir)
+      (dotimes [i n]
+        (spit (io/file dir (str "part-" i)) (apply str (repeat size \a))))
+      (.getAbsolutePath dir))))
+
+(defn ^:private bake
+  ([opts query] (bake :test opts query))
+  ([platform opts query]
+    (oven/bake platform {estimate-parallel 3.5} opts query)))
+
+(defn ^:private parallel-by-type [commands]
+  (->> commands
+    (filter (comp #{:group :join :distinct :sort} :type))
+    (map (juxt :type (comp :parallel :opts)))
+    (into {})))
+
+(deftest test-reducers
+  (let [opts {:bytes-per-reducer 100, :min 2, :max 10}]
+    (is (= 2 (reducers opts 0)))
+    (is (= 3 (reducers opts 201)))
+    (is (= 10 (reducers opts 5000)))))
+
+(deftest test-estimate-parallel
+  (with-redefs [pigpen.raw/pigsym (pigsym-inc)]
+    (let [location (data-dir 4)
+          query (->>
+                  (pig-io/load-string location)
+                  (pig-join/group-by identity)
+                  (pig-map/map first)
+                  (pig-io/store-string "build/parallel-test/out"))]
+
+      (testing "disabled by default"
+        (is (= {:group nil}
+               (parallel-by-type (bake {} query)))))
+
+      (testing "one reducer per 1000 bytes"
+        (is (= {:group 4}
+               (parallel-by-type (bake {:estimate-parallel {:bytes-per-reducer 1000}} query)))))
+
+      (testing "bounded"
+        (is (= {:group 3}
+               (parallel-by-type (bake {:estimate-parallel {:bytes-per-reducer 1000
+                                                            :max 3}}
+                                       query))))
+        (is (= {:group 1}
+               (parallel-by-type (bake {:estimate-parallel true} query)))))
+
+      (testing "selectivity"
+        (is (= {:group 2}
+               (parallel-by-type (bake {:estimate-parallel {:bytes-per-reducer 1000}}
+                                       (->>
+                                         (pig-io/load-string location)
+                                         (pig-filter/sample 0.5)
+                                         (pig-join/group-by identity)
+                                         (pig-io/store-string "build/parallel-test/out"))))))
+        (is (= {:distinct 4, :group 1}
+               (parallel-by-type (bake {:estimate-parallel {:bytes-per-reducer 1000
+                                                            :selectivity {:distinct 0.1}}}
+                                       (->>
+                                         (pig-io/load-string location)
+                                         (pig-set/distinct)
+                                         (pig-join/group-by identity)
+                                         (pig-io/store-string "build/parallel-test/out"))))))))))
+
+(deftest test-estimate-parallel-unknown
+  (testing "empty input"
+    (is (= {:group nil}
+           (->>
+             (pig-io/load-string (data-dir 2 0))
+             (pig-join/group-by identity)
+             (pig-io/store-string "build/parallel-test/out")
+             (bake {:estimate-parallel true})
+             (parallel-by-type)))))
+
+  (testing "remote input"
+    (is (= {:group nil}
+           (->>
+             (pig-io/load-string "s3://bucket/parallel-test")
+             (pig-join/group-by identity)
+             (pig-io/store-string "build/parallel-test/out")
+             (bake {:estimate-parallel true})
+             (parallel-by-type))))))
+
+(deftest test-estimate-parallel-sort
+  (let [query (->>
+                (pig-io/load-string (data-dir 4))
+                (pig-map/sort)
+                (pig-io/store-string "build/parallel-test/out"))
+        opts {:estimate-parallel {:bytes-per-reducer 1000}}]
+    (is (= {:sort 4} (parallel-by-type (bake opts query))))
+    (testing "cascading sorts in a single reducer"
+      (is (= {:sort nil} (parallel-by-type (bake :cascading opts query)))))))
+
+(deftest test-estimate-parallel-explicit
+  (let [location (data-dir 4)]
+    (is (= {:group 42}
+           (->>
+             (pig-io/load-string location)
+             (pig-join/group-by identity {:parallel 42})
+             (pig-io/store-string "build/parallel-test/out")
+             (bake {:estimate-parallel {:bytes-per-reducer 1000}})
+             (parallel-by-type))))))
+
+(deftest test-estimate-parallel-stats
+  (let [query (->>
+                (pig-io/load-string "build/parallel-test/missing")
+                (pig-join/group-by identity)
+                (pig-io/store-string "build/parallel-test/out"))
+        commands (bake {} query)
+        load-id (:id (first (filter (comp #{:load} :type) commands)))
+        stats {(get (command-keys commands) load-id) 5000}]
+
+    (testing "unknown input"
+      (is (= {:group nil}
+             (parallel-by-type (bake {:estimate-parallel true} query)))))
+
+    (testing "prior run"
+      (is (= {:group 5}
+             (parallel-by-type (bake {:estimate-parallel {:bytes-per-reducer 1000
+                                                          :stats stats}}
+                                     query)))))))
+
+(deftest test-command-keys
+  (let [commands (bake {} (->>
+                            (pig-io/load-string "build/parallel-test/missing")
+                            (pig-join/group-by identity)
+                            (pig-io/store-string "build/parallel-test/out")))]
+    (testing "ignores :parallel"
+      (is (= (command-keys commands)
+             (command-keys (map #(assoc-in % [:opts :parallel] 42) commands)))))))
+
+(deftest test-estimate-parallel-group-stats
+  (let [query (->>
+                (pig-io/load-string (data-dir 1))
+                (pig-join/group-by identity)
+                (pig-map/map first)
+                (pig-join/group-by identity)
+                (pig-io/store-string "build/parallel-test/out"))
+        keys (bake-keys bake {} query)
+        group-ids (->> (bake {} query)
+                    (filter (comp #{:group} :type))
+                    (map :id))
+        stats {(get keys (first group-ids)) 3000}
+        baked (bake {:estimate-parallel {:bytes-per-reducer 1000
+                                         :stats stats}}
+                    query)]
+    (is (= [1 3]
+           (->> baked
+             (filter (comp #{:group} :type))
+             (map (comp :parallel :opts)))))
+    (testing "keys match once :parallel is set"
+      (is (= (set (vals keys))
+             (set (vals (command-keys baked))))))))
@@ -19,6 +19,7 @@
 (ns pigpen.runtime-test
   (:require [clojure.test :refer :all]
             [pigpen.runtime :refer :all]
+            [pigpen.runtime.view :as view]
             [clojure.edn]))
 
 (defn xf->f [xf]
@@ -71,6 +72,78 @@
     (is (= (f 2) 4))
     (is (= (f 42) 1764))))
 
+(deftest test-hybrid->clojure
+  (let [m (hybrid->clojure (java.util.HashMap. {"a" 1, "b" (java.util.HashMap. {"c" 2})}))]
+    (is (map? m))
+    (is (= m {"a" 1, "b" {"c" 2}}))
+    (is (= {"a" 1, "b" {"c" 2}} m))
+    (is (= (get-in m ["b" "c"]) 2))
+    (is (= (assoc m "d" 3) {"a" 1, "b" {"c" 2}, "d" 3}))
+    (is (= (dissoc m "b") {"a" 1}))
+    (is (= (hash m) (hash {"a" 1, "b" {"c" 2}})))
+    (is (= (pr-str (get m "b")) "{\"c\" 2}"))))
+
+(deftest test-map-view
+  (let [reads (atom [])
+        record (java.util.ArrayList. ["x" "y"])
+        v (view/map-view {:a 0, :b 1}
+                         #(.get record (int %))
+                         (fn [x] (swap! reads conj x) (keyword x)))]
+    (is (= (:a v) :x))
+    (is (= @reads ["x"]))
+    (is (= (v :c :missing) :missing))
+    (is (= (count v) 2))
+    (is (contains? v :b))
+    (is (= (view/realize v) {:a :x, :b :y}))
+    (is (= (into {} v) {:a :x, :b :y}))
+
+    (testing "converts each value once"
+      (dotimes [_ 3]
+        (is (= (:a v) :x))
+        (is (= v {:a :x, :b :y}))
+        (is (= (hash v) (hash {:a :x, :b :y})))
+        (is (= (seq v) (seq {:a :x, :b :y}))))
+      (is (= @reads ["x" "y"])))))
+
+(deftest test-vector-view
+  (let [reads (atom [])
+        record (java.util.ArrayList. [1 2 3])
+        v (view/vector-view (.size record)
+                            #(.get record (int %))
+                            (fn [x] (swap! reads conj x) (* x 10)))]
+    (is (vector? v))
+    (let [[a b] v]
+      (is (= b 20)))
+    (is (= @reads [1 2]))
+    (is (= v [10 20 30]))
+    (is (= [10 20 30] v))
+    (is (= (conj v 40) [10 20 30 40]))
+    (is (= (peek v) 30))
+    (is (= (v 0) 10))
+    (is (= (get v 5 :missing) :missing))
+    (is (= (hash v) (hash [10 20 30])))
+    (is (= (map inc v) [11 21 31]))
+    (testing "converts each value once"
+      (is (= @reads [1 2 3])))))
+
+(deftest test-seq-view
+  (let [reads (atom 0)
+        record (java.util.ArrayList. [1 2 3])
+        v (view/seq-view #(iterator-seq (.iterator record))
+                         (fn [x] (swap! reads inc) (inc x)))]
+    (is (seq? v))
+    (is (= v [2 3 4]))
+    (is (= (seq v) [2 3 4]))
+    (is (= (first v) 2))
+    (is (= (count v) 3))
+    (is (= (hash v) (hash [2 3 4])))
+    (testing "converts each value once"
+      (is (= @reads 3)))
+    (is (= (view/realize v) [2 3 4])))
+  (testing "known count"
+    (let [v (view/seq-view 3 #(throw (Exception. "not read")) inc)]
+      (is (= (count v) 3)))))
+
 (deftest test-exec
 
   (let [command (comp
@@ -21,7 +21,7 @@
   (:require [pigpen.local :as local :refer [PigPenLocalLoader PigPenLocalStorage]]
             [pigpen.extensions.io :as io])
   (:import [java.io File]
-           [org.apache.hadoop.fs Path]
+           [org.apache.hadoop.fs Path FileSystem FileStatus]
            [org.apache.hadoop.conf Configuration]
            [org.apache.hadoop.mapreduce InputFormat InputSplit OutputFormat
             RecordReader RecordWriter
@@ -59,6 +59,19 @@
     (.getConfiguration job)
     (TaskAttemptID. "jt" 0 true 1 0)))
 
+(defn location-size
+  "Returns the total size in bytes of the files at location, which can be a
+glob, or nil if nothing matches. Locations without a scheme use the default
+FileSystem of the Hadoop configuration."
+  [^String location]
+  (let [path (Path. location)
+        ^FileSystem fs (.getFileSystem path (Configuration.))]
+    (when-let [statuses (seq (.globStatus fs path))]
+      (->> statuses
+        (map (fn [^FileStatus s]
+               (.getLength (.getContentSummary fs (.getPath s)))))
+        (reduce +)))))
+
 (defn input-format->values
   "Uses a Hadoop InputFormat to read values from a file."
   [^InputFormat input-format config-values ^String location f]
@@ -19,7 +19,9 @@
 (ns pigpen.pig.oven
   (:require [pigpen.raw :as raw]
             [pigpen.pig.raw :as pig-raw]
-            [pigpen.oven]))
+            [pigpen.oven]
+            [pigpen.parallel :as parallel]
+            [pigpen.hadoop :as hadoop]))
 
 (defmulti command->references :type)
 (defmethod command->references :default [_] nil)
@@ -155,6 +157,9 @@
 
 ;; **********
 
+(defmethod parallel/location-bytes :pig [_ location]
+  (hadoop/location-size location))
+
 (defn ^:private split-project
   "Splits every project command into two so that column pruning works"
   [_ commands]
@@ -216,13 +221,14 @@ produces a non-pigpen output.
   ([opts query]
     (pigpen.oven/bake
       :pig
-      {extract-options     1.1
-       extract-references  1.2
-       add-pigpen-jar      1.3
-       merge-sort-rank     1.4
-       expand-load-filters 2.1
-       dec-rank            2.2
-       split-project       4.5}
+      {extract-options            1.1
+       extract-references         1.2
+       add-pigpen-jar             1.3
+       merge-sort-rank            1.4
+       expand-load-filters        2.1
+       dec-rank                   2.2
+       parallel/estimate-parallel 3.5
+       split-project              4.5}
       (merge {:extract-references? true
               :extract-options?    true
               :add-pigpen-jar?     true
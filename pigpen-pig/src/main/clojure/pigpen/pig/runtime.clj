@@ -26,6 +26,7 @@ possible as it's used at runtime."
             [clojure.data.json :as json]
             [clojure.core.async :as a]
             [pigpen.runtime :as rt :refer [HybridToClojure NativeToClojure]]
+            [pigpen.runtime.view :as view]
             [pigpen.extensions.core-async :as ae]
             [taoensso.nippy :refer [freeze thaw]])
   (:import [pigpen PigPenException]
@@ -112,11 +113,13 @@ possible as it's used at runtime."
              :v1-compatibility? false})))
   Tuple
   (rt/hybrid->clojure [^Tuple value]
-    (->> value (.getAll) (mapv rt/hybrid->clojure)))
+    (view/vector-view (.size value) #(.get value (int %)) rt/hybrid->clojure))
   DataBag
   (rt/hybrid->clojure [^DataBag value]
     ;; This is flattened to help with dereferenced fields that result in a bag of a single tuple
-    (->> value (.iterator) iterator-seq (mapcat rt/hybrid->clojure)))
+    (view/seq-view
+      #(->> value (.iterator) iterator-seq (mapcat (fn [^Tuple t] (.getAll t))))
+      rt/hybrid->clojure))
   Channel
   (rt/hybrid->clojure [value]
     (->> value ae/safe-<!! (map rt/hybrid->clojure))))
@@ -129,10 +132,10 @@ possible as it's used at runtime."
     (.get value))
   Tuple
   (rt/native->clojure [^Tuple value]
-    (->> value (.getAll) (mapv rt/native->clojure)))
+    (view/vector-view (.size value) #(.get value (int %)) rt/native->clojure))
   DataBag
   (rt/native->clojure [^DataBag value]
-    (->> value (.iterator) iterator-seq (map rt/native->clojure))))
+    (view/seq-view (.size value) #(->> value (.iterator) iterator-seq) rt/native->clojure)))
 
 ;; **********
 
@@ -353,7 +356,7 @@ initial reduce, a combiner, and a final stage."
         (->> args
           (mapcat split-bag)
           (map vector)
-          (map (partial exec-initial pre (combinef) reducef))
+          (map #(exec-initial pre (combinef) reducef %))
           (apply bag)
           vector
           (exec-intermed combinef)
@@ -156,11 +156,8 @@ See pigpen.core and pigpen.pig
 (defmulti storage->script (juxt :type :storage))
 
 (defmethod storage->script [:load :binary]
-  [{:keys [fields]}]
-  (let [pig-fields (->> fields
-                     (map format-field)
-                     (join ", "))]
-    (str "BinStorage()")))
+  [_]
+  "pigpen.PigPenBinaryStorage()")
 
 (defmethod storage->script [:load :string]
   [{:keys [fields]}]
@@ -172,7 +169,7 @@ See pigpen.core and pigpen.pig
 
 (defmethod storage->script [:store :binary]
   [_]
-  (str "BinStorage()"))
+  "pigpen.PigPenBinaryStorage()")
 
 (defmethod storage->script [:store :string]
   [_]
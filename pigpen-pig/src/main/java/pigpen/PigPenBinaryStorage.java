@@ -0,0 +1,288 @@
+/*
+ *
+ *  Copyright 2015 Netflix, Inc.
+ *
+ *     Licensed under the Apache License, Version 2.0 (the "License");
+ *     you may not use this file except in compliance with the License.
+ *     You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *     Unless required by applicable law or agreed to in writing, software
+ *     distributed under the License is distributed on an "AS IS" BASIS,
+ *     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *     See the License for the specific language governing permissions and
+ *     limitations under the License.
+ *
+ */
+
+package pigpen;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.OutputFormat;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.pig.FileInputLoadFunc;
+import org.apache.pig.LoadFunc;
+import org.apache.pig.ResourceSchema;
+import org.apache.pig.StoreFunc;
+import org.apache.pig.StoreFuncInterface;
+import org.apache.pig.backend.hadoop.executionengine.mapReduceLayer.PigSplit;
+import org.apache.pig.data.DataByteArray;
+import org.apache.pig.data.Tuple;
+import org.apache.pig.data.TupleFactory;
+
+import pigpen.io.BinaryFormat;
+import pigpen.io.BinaryReader;
+import pigpen.io.BinaryWriter;
+
+/**
+ * Loads and stores the PigPen binary format. Fields are stored exactly as the
+ * PigPen runtime froze them, so values are never re-encoded. Splits are
+ * computed from the block index of each file. See pigpen.io.BinaryFormat
+ */
+public class PigPenBinaryStorage extends FileInputLoadFunc implements StoreFuncInterface {
+
+    private final TupleFactory tupleFactory = TupleFactory.getInstance();
+
+    private RecordReader<NullWritable, byte[][]> reader;
+
+    private RecordWriter<NullWritable, byte[][]> writer;
+
+    // ********** Load **********
+
+    @Override
+    public void setLocation(final String location, final Job job) throws IOException {
+        FileInputFormat.setInputPaths(job, location);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public InputFormat getInputFormat() throws IOException {
+        return new BinaryInputFormat();
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void prepareToRead(final RecordReader reader, final PigSplit split) throws IOException {
+        this.reader = reader;
+    }
+
+    @Override
+    public Tuple getNext() throws IOException {
+        try {
+            if (!this.reader.nextKeyValue()) {
+                return null;
+            }
+            final byte[][] fields = this.reader.getCurrentValue();
+            final Tuple tuple = this.tupleFactory.newTuple(fields.length);
+            for (int i = 0; i < fields.length; i++) {
+                tuple.set(i, fields[i] == null ? null : new DataByteArray(fields[i]));
+            }
+            return tuple;
+        } catch (final InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    // ********** Store **********
+
+    @Override
+    public String relToAbsPathForStoreLocation(final String location, final Path curDir) throws IOException {
+        return LoadFunc.getAbsolutePath(location, curDir);
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public OutputFormat getOutputFormat() throws IOException {
+        return new BinaryOutputFormat();
+    }
+
+    @Override
+    public void setStoreLocation(final String location, final Job job) throws IOException {
+        FileOutputFormat.setOutputPath(job, new Path(location));
+    }
+
+    @Override
+    public void checkSchema(final ResourceSchema s) throws IOException {
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void prepareToWrite(final RecordWriter writer) throws IOException {
+        this.writer = writer;
+    }
+
+    @Override
+    public void putNext(final Tuple t) throws IOException {
+        final byte[][] fields = new byte[t.size()][];
+        for (int i = 0; i < fields.length; i++) {
+            final Object value = t.get(i);
+            if (value instanceof DataByteArray) {
+                fields[i] = ((DataByteArray) value).get();
+            } else if (value != null) {
+                throw new IOException("PigPenBinaryStorage expects frozen values, found "
+                        + value.getClass().getName());
+            }
+        }
+        try {
+            this.writer.write(NullWritable.get(), fields);
+        } catch (final InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public void setStoreFuncUDFContextSignature(final String signature) {
+    }
+
+    @Override
+    public void cleanupOnFailure(final String location, final Job job) throws IOException {
+        StoreFunc.cleanupOnFailureImpl(location, job);
+    }
+
+    public void cleanupOnSuccess(final String location, final Job job) throws IOException {
+    }
+
+    // ********** Formats **********
+
+    public static class BinaryInputFormat extends FileInputFormat<NullWritable, byte[][]> {
+
+        /**
+         * Splits each file on block boundaries, using its index. Consecutive
+         * blocks are combined until they reach the split size.
+         */
+        @Override
+        public List<InputSplit> getSplits(final JobContext job) throws IOException {
+            final long minSize = Math.max(getFormatMinSplitSize(), getMinSplitSize(job));
+            final long maxSize = getMaxSplitSize(job);
+            final List<InputSplit> splits = new ArrayList<InputSplit>();
+            for (final FileStatus file : listStatus(job)) {
+                final Path path = file.getPath();
+                final FileSystem fs = path.getFileSystem(job.getConfiguration());
+                final BlockLocation[] locations = fs.getFileBlockLocations(file, 0, file.getLen());
+                final long splitSize = computeSplitSize(file.getBlockSize(), minSize, maxSize);
+
+                final long[][] index;
+                final FSDataInputStream in = fs.open(path);
+                try {
+                    in.seek(file.getLen() - BinaryFormat.TRAILER_SIZE);
+                    final long indexOffset = BinaryFormat.readIndexOffset(in);
+                    in.seek(indexOffset);
+                    index = BinaryFormat.readIndex(in, indexOffset);
+                } finally {
+                    in.close();
+                }
+
+                long start = index[0][0];
+                for (int i = 1; i < index.length; i++) {
+                    final long offset = index[i][0];
+                    if (offset - start >= splitSize || i == index.length - 1) {
+                        final String[] hosts = locations[getBlockIndex(locations, start)].getHosts();
+                        splits.add(new FileSplit(path, start, offset - start, hosts));
+                        start = offset;
+                    }
+                }
+            }
+            return splits;
+        }
+
+        @Override
+        public RecordReader<NullWritable, byte[][]> createRecordReader(final InputSplit split,
+                final TaskAttemptContext context) throws IOException, InterruptedException {
+            return new BinaryRecordReader();
+        }
+    }
+
+    public static class BinaryRecordReader extends RecordReader<NullWritable, byte[][]> {
+
+        private BinaryReader reader;
+        private long start;
+        private long end;
+        private byte[][] value;
+
+        @Override
+        public void initialize(final InputSplit genericSplit, final TaskAttemptContext context) throws IOException,
+                InterruptedException {
+            final FileSplit split = (FileSplit) genericSplit;
+            final Path path = split.getPath();
+            final FSDataInputStream in = path.getFileSystem(context.getConfiguration()).open(path);
+            final byte[] sync = BinaryFormat.readHeader(in);
+            this.start = Math.max(split.getStart(), BinaryFormat.HEADER_SIZE);
+            this.end = split.getStart() + split.getLength();
+            in.seek(this.start);
+            this.reader = new BinaryReader(new BufferedInputStream(in), sync, this.start, this.end);
+        }
+
+        @Override
+        public boolean nextKeyValue() throws IOException, InterruptedException {
+            this.value = this.reader.next();
+            return this.value != null;
+        }
+
+        @Override
+        public NullWritable getCurrentKey() throws IOException, InterruptedException {
+            return NullWritable.get();
+        }
+
+        @Override
+        public byte[][] getCurrentValue() throws IOException, InterruptedException {
+            return this.value;
+        }
+
+        @Override
+        public float getProgress() throws IOException, InterruptedException {
+            if (this.end <= this.start) {
+                return 0.0f;
+            }
+            return Math.min(1.0f, (this.reader.getPosition() - this.start) / (float) (this.end - this.start));
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.reader != null) {
+                this.reader.close();
+            }
+        }
+    }
+
+    public static class BinaryOutputFormat extends FileOutputFormat<NullWritable, byte[][]> {
+
+        @Override
+        public RecordWriter<NullWritable, byte[][]> getRecordWriter(final TaskAttemptContext context)
+                throws IOException, InterruptedException {
+            final Path file = getDefaultWorkFile(context, "");
+            final FileSystem fs = file.getFileSystem(context.getConfiguration());
+            final BinaryWriter writer = new BinaryWriter(fs.create(file, false));
+            return new RecordWriter<NullWritable, byte[][]>() {
+                @Override
+                public void write(final NullWritable key, final byte[][] value) throws IOException {
+                    writer.write(value);
+                }
+
+                @Override
+                public void close(final TaskAttemptContext context) throws IOException {
+                    writer.close();
+                }
+            };
+        }
+    }
+}
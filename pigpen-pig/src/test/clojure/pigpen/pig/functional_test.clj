@@ -31,6 +31,8 @@
 (def-functional-tests "pig"
   (pig-harness prefix)
 
-  ; Pending https://issues.apache.org/jira/browse/PIG-4298
-  #{pigpen.functional.map-test/test-sort-desc
-    pigpen.functional.map-test/test-sort-by-desc})
+  #{; Pending https://issues.apache.org/jira/browse/PIG-4298
+    pigpen.functional.map-test/test-sort-desc
+    pigpen.functional.map-test/test-sort-by-desc
+    ; Pig's SAMPLE doesn't take a seed
+    pigpen.functional.filter-test/test-sample-seed})
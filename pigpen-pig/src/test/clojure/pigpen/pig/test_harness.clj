@@ -26,7 +26,7 @@
             [pigpen.runtime :as rt]
             [pigpen.pig.local :as pig-local])
   (:import [org.apache.pig.pigunit PigTest]
-           [org.apache.pig.builtin BinStorage]))
+           [pigpen PigPenBinaryStorage]))
 
 (defn list-files [file]
   (->>
@@ -51,7 +51,7 @@
       (run-script harness))
     (->>
       (list-files output-file)
-      (mapcat #(pig-local/load-func->values (BinStorage.) {} % [:value]))
+      (mapcat #(pig-local/load-func->values (PigPenBinaryStorage.) {} % [:value]))
       (map (comp rt/hybrid->clojure :value)))))
 
 (defn pig-harness [prefix]
@@ -51,15 +51,21 @@ sequence. This command is very useful for unit tests.
 
   Note: pig/store commands return the output data
         pig/store-many commands merge their results
+
+  Options:
+
+    :cache - Options for the relation cache. See pigpen.local/cache.
 "
   {:added "0.1.0"}
-  [query]
-  (let [state {:code-cache (atom {})}
-        graph (oven/bake :rx {} {} query)
-        last-command (:id (last graph))]
-    (->> graph
-      (reduce (partial rx/graph->observable+ state) {})
-      (last-command)
-      (multicast->observable)
-      (rx-blocking/into [])
-      (map (comp local/remove-sentinel-nil val first)))))
+  ([query] (dump {} query))
+  ([opts query]
+    (let [state {:code-cache (atom {})
+                 :cache (local/cache-opts opts)}
+          graph (oven/bake :rx {local/cache-commands 4.5} opts query)
+          last-command (:id (last graph))]
+      (->> graph
+        (reduce (partial rx/graph->observable+ state) {})
+        (last-command)
+        (multicast->observable)
+        (rx-blocking/into [])
+        (map (comp local/remove-sentinel-nil val first))))))
@@ -21,6 +21,8 @@
             [pigpen.model :as m]
             [pigpen.runtime]
             [pigpen.local :as local]
+            [pigpen.local.cache :as cache]
+            [pigpen.local.record :as record]
             [clojure.java.io :as io]
             [clojure.core.reducers :as reducers]
             [rx.lang.clojure.core :as rx]
@@ -53,22 +55,45 @@
 
 (defmulti graph->observable (fn [state data command] (:type command)))
 
+(defn ^:private cache-observable
+  "Writes the values of o to the cache as they're observed. The entry is only
+committed if o completes."
+  [{cache-opts :cache} {:keys [fields opts]} ^Observable o]
+  (if-let [key (:cache-key opts)]
+    (let [entry (delay (cache/open-entry cache-opts key fields))
+          committed (atom false)
+          ^Observable o' (rx/do (fn [value]
+                                  (cache/write-row! @entry value))
+                                o)]
+      (->> (rx-interop/action []
+             (cache/commit-entry! cache-opts @entry)
+             (reset! committed true))
+        (.doOnCompleted o')
+        (rx/finally
+          (when (and (realized? entry) (not @committed))
+            (cache/abort-entry! @entry)))))
+    o))
+
 (defn graph->observable+ [state data {:keys [id ancestors] :as command}]
   ;(prn 'id id)
   (let [ancestor-data (mapv (comp multicast->observable data) ancestors)
-        result (graph->observable state ancestor-data command)]
+        result (->> (graph->observable state ancestor-data command)
+                 (cache-observable state command))]
     ;(prn 'result result)
     (assoc data id (multicast result))))
 
 ;; ********** IO **********
 
 (s/defmethod graph->observable :return
-  [_ _ {:keys [data]} :- m/Return]
-  (rx/seq->o data))
+  [_ _ {:keys [fields data]} :- m/Return]
+  (->> data
+    (map (partial record/from-map (record/schema fields)))
+    (rx/seq->o)))
 
 (s/defmethod graph->observable :load
-  [_ _ {:keys [location], :as command} :- m/Load]
+  [_ _ {:keys [location fields], :as command} :- m/Load]
   (let [local-loader (local/load command)
+        schema (record/schema fields)
         ^Observable o (->>
                         (rx/observable*
                           (fn [^Subscriber s]
@@ -80,7 +105,7 @@
                                   (let [reader (local/init-reader local-loader file)]
                                     (doseq [value (local/read local-loader reader)
                                             :while (not (.isUnsubscribed s))]
-                                      (rx/on-next s value))
+                                      (rx/on-next s (record/from-map schema value)))
                                     (local/close-reader local-loader reader)))
                                 (rx/on-completed s)
                                 ;; TODO test this more. Errors seem to cause deadlocks
@@ -109,25 +134,21 @@
 
 (s/defmethod graph->observable :project
   [state [data] {:keys [projections]} :- m/Project]
-  (rx/flatmap
-    (fn [values]
-      (->> projections
-        (map (partial local/graph->local state values))
-        (local/cross-product)
-        (rx/seq->o)))
-    data))
+  (let [f (local/project->fn state projections)]
+    (rx/flatmap (comp rx/seq->o f) data)))
 
 (s/defmethod graph->observable :rank
   [_ [data] {:keys [id]} :- m/Rank]
-  (->> data
-    (rx/map-indexed (fn [i v] (assoc v 'index i)))
-    (rx/map (local/update-field-ids id))))
+  (let [prepend (record/prepend 'index)]
+    (->> data
+      (rx/map-indexed (fn [i v] (prepend v i)))
+      (rx/map (local/update-field-ids id)))))
 
 (s/defmethod graph->observable :sort
   [_ [data] {:keys [id key comp]} :- m/Sort]
   (->> data
     (rx/sort-by key (local/pigpen-comparator comp))
-    (rx/map #(dissoc % key))
+    (rx/map (record/without key))
     (rx/map (local/update-field-ids id))))
 
 ;; ********** Filter **********
@@ -145,57 +166,48 @@
     (rx/map (local/update-field-ids id))))
 
 (s/defmethod graph->observable :sample
-  [_ [data] {:keys [id p]} :- m/Sample]
+  [_ [data] {:keys [id p opts]} :- m/Sample]
   (->> data
-    (rx/filter (fn [_] (< (rand) p)))
+    (rx/filter (local/sampler p (:seed opts)))
     (rx/map (local/update-field-ids id))))
 
 ;; ********** Join **********
 
 (s/defmethod graph->observable :reduce
   [_ [data] {:keys [fields arg]} :- m/Reduce]
-  (->> data
-    (rx/map arg)
-    (rx/into [])
-    (rx/mapcat (fn [vs]
-                 (if (seq vs)
-                   (rx/return {(first fields) vs})
-                   (rx/empty))))))
+  (let [schema (record/schema fields)]
+    (->> data
+      (rx/map arg)
+      (rx/into [])
+      (rx/mapcat (fn [vs]
+                   (if (seq vs)
+                     (rx/return (record/from-values schema [vs]))
+                     (rx/empty)))))))
 
 (s/defmethod graph->observable :group
   [_ data {:keys [ancestors keys join-types fields]} :- m/Group]
-  (let [[group-field & data-fields] fields
-        join-types (zipmap keys join-types)]
+  (let [join-types (zipmap keys join-types)
+        group (record/grouper (record/schema fields))]
     (->>
       ;; map
       (zipv [d data
              id ancestors
              k keys]
         (->> d
-          (rx/flatmap
+          (rx/map
             (fn [values]
-              (let [key (local/induce-sentinel-nil+ (values k) id)]
-                (rx/seq->o
-                  (for [[f v] values]
-                    {;; This changes a nil values into a relation specific nil value
-                     :field f
-                     :key key
-                     :value v})))))))
+              ;; This changes a nil values into a relation specific nil value
+              [(local/induce-sentinel-nil+ (values k) id) values]))))
       ;; shuffle
       (apply rx/merge)
-      (rx/group-by :key)
+      (rx/group-by first)
       ;; reduce
       (rx/flatmap (fn [[key key-group]]
                     (->> key-group
-                      (rx/group-by :field)
-                      (rx/flatmap (fn [[field field-group-o]]
-                                    (->> field-group-o
-                                      (rx/into [])
-                                      (rx/map (fn [field-group]
-                                                [field (map :value field-group)])))))
-                      (rx/into
-                        ;; Revert the fake nils we put in the key earlier
-                        {group-field (local/remove-sentinel-nil+ key)}))))
+                      (rx/map second)
+                      (rx/into [])
+                      ;; Revert the fake nils we put in the key earlier
+                      (rx/map (partial group (local/remove-sentinel-nil+ key))))))
       ; remove rows that were required, but are not present (inner joins)
       (rx/filter (complement
                    (fn [value]
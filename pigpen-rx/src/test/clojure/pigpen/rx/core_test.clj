@@ -65,3 +65,19 @@
   (let [data (pig/return [1 2 3])
         command (pig/map (fn [x] (throw (java.lang.Exception.))) data)]
     (is (thrown? Exception (rx/dump command)))))
+
+(def cache-calls (atom 0))
+
+(defn ^:private cache-query []
+  (->> (pig/return [1 2 3])
+    (pig/map (fn [x] (swap! cache-calls inc) (* x x)))
+    (pig/cache)
+    (pig/map inc)))
+
+(deftest test-cache
+  (let [opts {:cache {:dir (str "build/rx-test/cache/" (gensym))}}]
+    (reset! cache-calls 0)
+    (is (= (sort (rx/dump opts (cache-query))) [2 5 10]))
+    (is (= @cache-calls 3))
+    (is (= (sort (rx/dump opts (cache-query))) [2 5 10]))
+    (is (= @cache-calls 3))))